@@ -0,0 +1,33 @@
+package carpet.script;
+
+import carpet.script.bundled.Module;
+import carpet.script.exception.InternalExpressionException;
+
+/**
+ * Script host without a server, apps or libraries, enough to run the language core alone
+ */
+public class BenchmarkHost extends ScriptHost
+{
+    public BenchmarkHost(boolean compileCode)
+    {
+        super(null, false, null);
+        this.compileCode = compileCode;
+    }
+
+    @Override
+    protected Module getModuleOrLibraryByName(String name)
+    {
+        throw new InternalExpressionException("Benchmarks can't import modules");
+    }
+
+    @Override
+    protected void runModuleCode(Context c, Module module)
+    {
+    }
+
+    @Override
+    protected ScriptHost duplicate()
+    {
+        return new BenchmarkHost(compileCode);
+    }
+}
@@ -0,0 +1,146 @@
+package carpet.script;
+
+import carpet.CarpetSettings;
+import carpet.script.value.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs common scarpet workloads through {@link Expression} with a {@link BenchmarkHost}.
+ * Code is parsed and optimized once in the setup, so benchmarks measure evaluation only, except for {@link #parse()}.
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LanguageBenchmark
+{
+    private static final String FUNCTIONS = String.join("\n",
+            "square(x) -> x * x;",
+            "fib(n) -> if (n < 2, n, fib(n - 1) + fib(n - 2));",
+            "count_down(n, acc) -> if (n == 0, acc, count_down(n - 1, acc + n));"
+    );
+
+    private static final String PROGRAM = String.join("\n",
+            "distance(a, b) -> sqrt(reduce(a - b, _a + _*_, 0));",
+            "closest(points, target) -> (",
+            "    best = null; best_distance = 0;",
+            "    for (points, d = distance(_, target); if (best == null || d < best_distance, best = _; best_distance = d));",
+            "    best",
+            ");",
+            "points = map(range(100), [_ % 10, floor(_ / 10), (_ * 7) % 13]);",
+            "closest(points, [4.5, 4.5, 6])"
+    );
+
+    /** interpreted: parse tree as is, optimized: with scriptsOptimization, compiled: with scriptsCompilation as well */
+    @Param({"interpreted", "optimized", "compiled"})
+    public String mode;
+
+    private ScriptHost host;
+    private Expression arithmetic;
+    private Expression lists;
+    private Expression maps;
+    private Expression sorting;
+    private Expression calls;
+    private Expression recursion;
+    private Expression tailRecursion;
+    private Expression strings;
+
+    @Setup
+    public void setup()
+    {
+        CarpetSettings.scriptsOptimization = !mode.equals("interpreted");
+        CarpetSettings.scriptsCompilation = false;
+        host = new BenchmarkHost(mode.equals("compiled"));
+        new Expression(FUNCTIONS).eval(new Context(host));
+        arithmetic = prepare("s = 0; loop(10000, s += _ * 2 - _ / 3 + (_ % 7) * 1.5); s");
+        lists = prepare("l = []; loop(10000, l += _); length(l)");
+        maps = prepare("m = {}; loop(10000, m:_ = _ * _); length(m)");
+        sorting = prepare("sort(map(range(10000), (_ * 7919) % 10007))");
+        calls = prepare("s = 0; loop(10000, s += square(_)); s");
+        recursion = prepare("fib(16)");
+        tailRecursion = prepare("count_down(10000, 0)");
+        strings = prepare("s = ''; loop(1000, s += str('%d,', _)); length(split(',', upper(replace(s, '1', 'x'))))");
+    }
+
+    private Expression prepare(String code)
+    {
+        Expression expression = new Expression(code);
+        // parses and optimizes the code
+        expression.eval(new Context(host));
+        return expression;
+    }
+
+    private Value run(Expression expression)
+    {
+        return expression.eval(new Context(host));
+    }
+
+    @Benchmark
+    public Value arithmeticLoop()
+    {
+        return run(arithmetic);
+    }
+
+    @Benchmark
+    public Value listBuilding()
+    {
+        return run(lists);
+    }
+
+    @Benchmark
+    public Value mapBuilding()
+    {
+        return run(maps);
+    }
+
+    @Benchmark
+    public Value sorting()
+    {
+        return run(sorting);
+    }
+
+    @Benchmark
+    public Value functionCalls()
+    {
+        return run(calls);
+    }
+
+    @Benchmark
+    public Value recursion()
+    {
+        return run(recursion);
+    }
+
+    @Benchmark
+    public Value tailRecursion()
+    {
+        return run(tailRecursion);
+    }
+
+    @Benchmark
+    public Value stringOperations()
+    {
+        return run(strings);
+    }
+
+    @Benchmark
+    public Value parse()
+    {
+        return new Expression(PROGRAM).eval(new Context(host));
+    }
+}
@@ -492,6 +492,16 @@ public class CarpetSettings
     )
     public static boolean scriptsOptimization = true;
 
+    @Rule(
+            desc = "Runs optimized scripts as compiled code",
+            extra = {
+                    "Requires scriptsOptimization to be enabled.",
+                    "Apps can also opt in individually with 'compile' in their config"
+            },
+            category = SCARPET
+    )
+    public static boolean scriptsCompilation = false;
+
     @Rule(
             desc = "Location of the online repository of scarpet apps",
             extra = {
@@ -9,6 +9,7 @@ import carpet.script.CarpetScriptHost;
 import carpet.script.Expression;
 import carpet.script.LazyValue;
 import carpet.script.ScriptHost;
+import carpet.script.ScriptProfiler;
 import carpet.script.Tokenizer;
 import carpet.script.exception.CarpetExpressionException;
 import carpet.script.value.FunctionValue;
@@ -17,6 +18,7 @@ import carpet.settings.SettingsManager;
 import carpet.utils.CarpetProfiler;
 import carpet.utils.Messenger;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
 import com.mojang.brigadier.context.CommandContext;
@@ -32,6 +34,7 @@ import net.minecraft.command.argument.BlockStateArgumentType;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.util.Clearable;
+import net.minecraft.util.WorldSavePath;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockBox;
@@ -330,6 +333,11 @@ public class ScriptCommand
                 then(argument("path", StringArgumentType.greedyString()).
                         suggests(ScriptCommand::suggestDownloadableApps).
                         executes(cc-> AppStoreManager.downloadScript(cc.getSource(), StringArgumentType.getString(cc,"path"))));
+        LiteralArgumentBuilder<ServerCommandSource> p = literal("profile").requires( (player) -> SettingsManager.canUseCommand(player, CarpetSettings.commandScriptACE) ).
+                then(argument("app", StringArgumentType.word()).
+                        suggests( (cc, bb) -> suggestMatching(CarpetServer.scriptServer.modules.keySet(), bb)).
+                        then(argument("ticks", IntegerArgumentType.integer(1, 72000)).
+                                executes( (cc) -> profile(cc.getSource(), StringArgumentType.getString(cc, "app"), IntegerArgumentType.getInteger(cc, "ticks")))));
         LiteralArgumentBuilder<ServerCommandSource> r = literal("remove").requires( (player) -> SettingsManager.canUseCommand(player, CarpetSettings.commandScriptACE) ).
                 then(argument("app", StringArgumentType.word()).
                         suggests( (cc, bb) -> suggestMatching(CarpetServer.scriptServer.unloadableModules,bb)).
@@ -341,7 +349,7 @@ public class ScriptCommand
 
         dispatcher.register(literal("script").
                 requires((player) ->  SettingsManager.canUseCommand(player, CarpetSettings.commandScript)).
-                then(b).then(u).then(o).then(l).then(s).then(c).then(h).then(i).then(e).then(t).then(a).then(f).then(q).then(d).then(r));
+                then(b).then(u).then(o).then(l).then(s).then(c).then(h).then(i).then(e).then(t).then(a).then(f).then(q).then(d).then(p).then(r));
         dispatcher.register(literal("script").
                 requires((player) -> SettingsManager.canUseCommand(player, CarpetSettings.commandScript)).
                 then(literal("in").
@@ -388,6 +396,18 @@ public class ScriptCommand
         }
         return 1;
     }
+    private static int profile(ServerCommandSource source, String app, int ticks)
+    {
+        app = app.toLowerCase(Locale.ROOT);
+        if (!CarpetServer.scriptServer.modules.containsKey(app))
+        {
+            Messenger.m(source, "r App "+app+" is not loaded");
+            return 0;
+        }
+        ScriptProfiler.start(source, app, ticks, source.getServer().getSavePath(WorldSavePath.ROOT).resolve("scripts/profiles"));
+        return 1;
+    }
+
     private static int listGlobals(CommandContext<ServerCommandSource> context, boolean all) throws CommandSyntaxException
     {
         CarpetScriptHost host = getHost(context);
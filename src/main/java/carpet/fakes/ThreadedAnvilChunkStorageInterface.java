@@ -2,17 +2,27 @@ package carpet.fakes;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import net.minecraft.server.world.ChunkHolder;
 import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.thread.ThreadExecutor;
 
 public interface ThreadedAnvilChunkStorageInterface
 {
     Map<String, Integer> regenerateChunkRegion(List<ChunkPos> requestedChunks);
 
+    /**
+     * Regenerates chunks without waiting for them, running its main thread work with the executor
+     */
+    CompletableFuture<Map<String, Integer>> regenerateChunkRegion(List<ChunkPos> requestedChunks, Executor mainThread);
+
     void relightChunk(ChunkPos pos);
 
     void releaseRelightTicket(ChunkPos pos);
 
     Iterable<ChunkHolder> getChunksCM();
+
+    ThreadExecutor<Runnable> getMainThreadExecutorCM();
 }
@@ -5,6 +5,7 @@ import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.EntityType;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.TypeFilter;
 import net.minecraft.util.math.Box;
 import org.jetbrains.annotations.Nullable;
 
@@ -19,4 +20,9 @@ public interface WorldInterface
     boolean setBlockStateWithBlockEntity(BlockPos blockPos, BlockState blockState, BlockEntity newBlockEntity, int int1);
 
     List<Entity> getOtherEntitiesLimited(@Nullable Entity except, Box box, Predicate<? super Entity> predicate, int limit);
+
+    /**
+     * Entities of the type matching the predicate, in the box or the whole world, stopping once there is enough of them
+     */
+    <T extends Entity> List<T> getEntitiesLimited(TypeFilter<Entity, T> filter, @Nullable Box box, Predicate<? super T> predicate, int limit);
 }
@@ -0,0 +1,40 @@
+package carpet.mixins;
+
+import carpet.script.ScriptHost;
+import carpet.script.value.GeneratorValue;
+import net.minecraft.server.world.ServerChunkManager;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkStatus;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+@Mixin(ServerChunkManager.class)
+public abstract class ServerChunkManager_scarpetGeneratorMixin
+{
+    @Shadow @Final private Thread serverThread;
+
+    @Shadow @Final ServerWorld world;
+
+    @Shadow public abstract Chunk getChunk(int x, int z, ChunkStatus leastStatus, boolean create);
+
+    // the main thread waiting for a generator doesn't run other tasks, so generators, and other threads meanwhile,
+    // get their chunks through work handed over to it directly
+    @Inject(method = "getChunk(IILnet/minecraft/world/chunk/ChunkStatus;Z)Lnet/minecraft/world/chunk/Chunk;", at = @At("HEAD"), cancellable = true)
+    private void getChunkForGenerator(int x, int z, ChunkStatus leastStatus, boolean create, CallbackInfoReturnable<Chunk> cir)
+    {
+        if (Thread.currentThread() == serverThread) return;
+        Executor mainThread = GeneratorValue.mainThreadExecutor();
+        if (mainThread == null && GeneratorValue.isMainThreadWaiting())
+            mainThread = action -> ScriptHost.runOnMainThread(action, world.getServer());
+        if (mainThread != null)
+            cir.setReturnValue(CompletableFuture.supplyAsync(() -> getChunk(x, z, leastStatus, create), mainThread).join());
+    }
+}
@@ -1,13 +1,14 @@
 package carpet.mixins;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.function.IntFunction;
 import java.util.stream.Collectors;
@@ -53,7 +54,6 @@ import net.minecraft.util.thread.ThreadExecutor;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.ChunkStatus;
 import net.minecraft.world.chunk.WorldChunk;
-import net.minecraft.world.storage.RegionFile;
 
 import static carpet.script.CarpetEventServer.Event.CHUNK_GENERATED;
 import static carpet.script.CarpetEventServer.Event.CHUNK_LOADED;
@@ -108,6 +108,10 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
 
     ThreadLocal<Boolean> generated = ThreadLocal.withInitial(() -> null);
 
+    // unlike tickets of unknown type, these stay until they are removed, as regeneration may take a few ticks
+    @Unique
+    private static final ChunkTicketType<ChunkPos> REGENERATION = ChunkTicketType.create("scarpet_regeneration", Comparator.comparingLong(ChunkPos::toLong));
+
     // in convertToFullChunk
     // fancier version of the one below, ensuring that the event is triggered when the chunk is actually loaded.
     @SuppressWarnings("UnresolvedMixinReference")
@@ -173,6 +177,21 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
         this.addTicket(pos, ChunkStatus.EMPTY);
     }
 
+    @Unique
+    private void addTicket(final ChunkPos pos, final ChunkStatus status, final List<Pair<ChunkPos, Integer>> tickets)
+    {
+        final int level = 33 + ChunkStatus.getDistanceFromFull(status);
+        this.ticketManager.addTicketWithLevel(REGENERATION, pos, level, pos);
+        tickets.add(Pair.of(pos, level));
+    }
+
+    @Unique
+    private void removeTickets(final List<Pair<ChunkPos, Integer>> tickets)
+    {
+        for (final Pair<ChunkPos, Integer> ticket : tickets)
+            this.ticketManager.removeTicketWithLevel(REGENERATION, ticket.getKey(), ticket.getValue(), ticket.getKey());
+    }
+
     @Unique
     private void addRelightTicket(final ChunkPos pos)
     {
@@ -197,11 +216,10 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
     @Unique
     private Set<ChunkPos> getExistingChunks(final Set<ChunkPos> requestedChunks)
     {
-        final Map<String, RegionFile> regionCache = new HashMap<>();
         final Set<ChunkPos> ret = new HashSet<>();
 
         for (final ChunkPos pos : requestedChunks)
-            if (WorldTools.canHasChunk(this.world, pos, regionCache, true))
+            if (WorldTools.canHasChunk(this.world, pos, true))
                 ret.add(pos);
 
         return ret;
@@ -218,7 +236,7 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
     }
 
     @Unique
-    private Set<ChunkPos> loadExistingChunks(final Set<ChunkPos> requestedChunks, final Object2IntMap<String> report)
+    private Set<ChunkPos> loadExistingChunks(final Set<ChunkPos> requestedChunks, final Object2IntMap<String> report, final List<Pair<ChunkPos, Integer>> tickets)
     {
         if (report != null)
             report.put("requested_chunks", requestedChunks.size());
@@ -227,7 +245,7 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
         // This will not trigger loading from disk yet
 
         for (final ChunkPos pos : requestedChunks)
-            this.addTicket(pos);
+            this.addTicket(pos, ChunkStatus.EMPTY, tickets);
 
         this.tickTicketManager();
 
@@ -253,9 +271,9 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
     }
 
     @Unique
-    private Set<ChunkPos> loadExistingChunks(final Set<ChunkPos> requestedChunks)
+    private Set<ChunkPos> loadExistingChunks(final Set<ChunkPos> requestedChunks, final List<Pair<ChunkPos, Integer>> tickets)
     {
-        return this.loadExistingChunks(requestedChunks, null);
+        return this.loadExistingChunks(requestedChunks, null, tickets);
     }
 
     @Unique
@@ -285,7 +303,7 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
         this.addTicket(pos);
         this.tickTicketManager();
         if (this.currentChunkHolders.get(pos.toLong()).getCurrentChunk() == null) // chunk unloaded
-            if (WorldTools.canHasChunk(this.world, pos, null, true))
+            if (WorldTools.canHasChunk(this.world, pos, true))
                 this.currentChunkHolders.get(pos.toLong()).getChunkAt(ChunkStatus.EMPTY, (ThreadedAnvilChunkStorage) (Object) this);
         final Chunk chunk = this.getCurrentChunk(pos);
         if (!(chunk.getStatus().isAtLeast(ChunkStatus.LIGHT.getPrevious()))) return;
@@ -306,51 +324,89 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
 
     @Override
     public Map<String, Integer> regenerateChunkRegion(final List<ChunkPos> requestedChunksList)
+    {
+        final CompletableFuture<Map<String, Integer>> report = this.regenerateChunkRegion(requestedChunksList, this.mainThreadExecutor);
+        this.waitFor(report);
+
+        return report.join();
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Integer>> regenerateChunkRegion(final List<ChunkPos> requestedChunksList, final Executor mainThread)
     {
         final Object2IntMap<String> report = new Object2IntOpenHashMap<>();
         final Set<ChunkPos> requestedChunks = new HashSet<>(requestedChunksList);
+        final List<Pair<ChunkPos, Integer>> tickets = new ArrayList<>();
+
+        try
+        {
+            // Load requested chunks
+
+            final Set<ChunkPos> existingChunks = this.loadExistingChunks(requestedChunks, report, tickets);
+
+            // Load neighbors for light removal, together with requested chunks, so they are all waited for at once
+
+            final Set<ChunkPos> neighbors = new HashSet<>();
 
-        // Load requested chunks
+            for (final ChunkPos pos : existingChunks)
+                for (int x = -1; x <= 1; ++x)
+                    for (int z = -1; z <= 1; ++z)
+                        if (x != 0 || z != 0)
+                        {
+                            final ChunkPos nPos = new ChunkPos(pos.x + x, pos.z + z);
+                            if (!requestedChunks.contains(nPos))
+                                neighbors.add(nPos);
+                        }
 
-        final Set<ChunkPos> existingChunks = this.loadExistingChunks(requestedChunks, report);
+            final Set<ChunkPos> existingNeighbors = this.loadExistingChunks(neighbors, tickets);
+
+            // Tickets keep the chunks loaded until everything is done, also when it fails
+
+            return this.regenerateLoadedChunks(existingChunks, existingNeighbors, report, tickets, mainThread)
+                .whenCompleteAsync((r, exc) -> this.removeTickets(tickets), mainThread);
+        }
+        catch (final RuntimeException exc)
+        {
+            this.removeTickets(tickets);
+            throw exc;
+        }
+    }
 
+    @Unique
+    private CompletableFuture<Map<String, Integer>> regenerateLoadedChunks(final Set<ChunkPos> existingChunks, final Set<ChunkPos> existingNeighbors, final Object2IntMap<String> report, final List<Pair<ChunkPos, Integer>> tickets, final Executor mainThread)
+    {
         // Finish pending generation stages
         // This ensures that no generation events will be put back on the main thread after the chunks have been deleted
+        // Chunks can move on to further stages while waiting, so this checks them again once they are done
 
-        final Set<Chunk> affectedChunks = new HashSet<>();
+        final List<CompletableFuture<Chunk>> pending = new ArrayList<>();
 
         for (final ChunkPos pos : existingChunks)
-            affectedChunks.add(this.getCurrentChunk(pos));
+            this.addPendingChunk(pos, pending);
 
-        report.put("affected_chunks", affectedChunks.size());
+        for (final ChunkPos pos : existingNeighbors)
+            this.addPendingChunk(pos, pending);
 
-        // Load neighbors for light removal
+        if (!pending.isEmpty())
+            return Util.combine(pending).thenComposeAsync(
+                chunks -> this.regenerateLoadedChunks(existingChunks, existingNeighbors, report, tickets, mainThread),
+                mainThread
+            );
 
-        final Set<ChunkPos> neighbors = new HashSet<>();
-
-        for (final Chunk chunk : affectedChunks)
-        {
-            final ChunkPos pos = chunk.getPos();
+        final Set<Chunk> affectedChunks = new HashSet<>();
 
-            for (int x = -1; x <= 1; ++x)
-                for (int z = -1; z <= 1; ++z)
-                    if (x != 0 || z != 0)
-                    {
-                        final ChunkPos nPos = new ChunkPos(pos.x + x, pos.z + z);
-                        if (!requestedChunks.contains(nPos))
-                            neighbors.add(nPos);
-                    }
-        }
+        for (final ChunkPos pos : existingChunks)
+            affectedChunks.add(this.currentChunkHolders.get(pos.toLong()).getSavingFuture().join());
 
-        this.loadExistingChunks(neighbors);
+        report.put("affected_chunks", affectedChunks.size());
 
         // Determine affected neighbors
 
         final Set<Chunk> affectedNeighbors = new HashSet<>();
 
-        for (final ChunkPos pos : neighbors)
+        for (final ChunkPos pos : existingNeighbors)
         {
-            final Chunk chunk = this.getCurrentChunk(pos);
+            final Chunk chunk = this.currentChunkHolders.get(pos.toLong()).getSavingFuture().join();
 
             if (chunk.getStatus().isAtLeast(ChunkStatus.LIGHT.getPrevious()))
                 affectedNeighbors.add(chunk);
@@ -436,7 +492,7 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
         );
 
         for (final Entry<ChunkPos, ChunkStatus> entry : targetGenerationStatus.entrySet())
-            this.addTicket(entry.getKey(), entry.getValue());
+            this.addTicket(entry.getKey(), entry.getValue(), tickets);
 
         this.tickTicketManager();
 
@@ -458,6 +514,10 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
             )
         );
 
+        // Each layer is timed from when the previous one is done, like they were waited for one by one
+
+        CompletableFuture<?> generation = CompletableFuture.completedFuture(null);
+
         for (final ChunkStatus status : ChunkStatus.createOrderedList())
         {
             final List<CompletableFuture<?>> futures = targetGenerationFuturesGrouped.get(status);
@@ -466,25 +526,46 @@ public abstract class ThreadedAnvilChunkStorage_scarpetChunkCreationMixin implem
                 continue;
 
             report.put("layer_count_" + status.getId(), futures.size());
-            final long start = System.currentTimeMillis();
 
-            this.waitFor(futures);
+            generation = generation.thenComposeAsync(v -> {
+                final long start = System.currentTimeMillis();
 
-            report.put("layer_time_" + status.getId(), (int) (System.currentTimeMillis() - start));
+                return Util.combine(futures).thenRunAsync(
+                    () -> report.put("layer_time_" + status.getId(), (int) (System.currentTimeMillis() - start)),
+                    mainThread
+                );
+            }, mainThread);
         }
 
         report.put("relight_count", lightFutures.size());
-        final long relightStart = System.currentTimeMillis();
 
-        this.waitFor(lightFutures);
+        return generation.thenComposeAsync(v -> {
+            final long relightStart = System.currentTimeMillis();
 
-        report.put("relight_time", (int) (System.currentTimeMillis() - relightStart));
+            return Util.combine(lightFutures).thenApplyAsync(lights -> {
+                report.put("relight_time", (int) (System.currentTimeMillis() - relightStart));
+                return (Map<String, Integer>) report;
+            }, mainThread);
+        }, mainThread);
+    }
+
+    @Unique
+    private void addPendingChunk(final ChunkPos pos, final List<CompletableFuture<Chunk>> pending)
+    {
+        final CompletableFuture<Chunk> future = this.currentChunkHolders.get(pos.toLong()).getSavingFuture();
 
-        return report;
+        if (!future.isDone())
+            pending.add(future);
     }
 
     @Override
     public Iterable<ChunkHolder> getChunksCM() {
         return entryIterator();
     }
+
+    @Override
+    public ThreadExecutor<Runnable> getMainThreadExecutorCM()
+    {
+        return this.mainThreadExecutor;
+    }
 }
@@ -5,6 +5,7 @@ import com.google.common.collect.Lists;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.boss.dragon.EnderDragonEntity;
 import net.minecraft.entity.boss.dragon.EnderDragonPart;
+import net.minecraft.util.TypeFilter;
 import net.minecraft.util.math.Box;
 import net.minecraft.util.profiler.Profiler;
 import net.minecraft.world.World;
@@ -15,6 +16,7 @@ import org.spongepowered.asm.mixin.Shadow;
 
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 @Mixin(World.class)
@@ -55,6 +57,31 @@ public abstract class World_getOtherEntitiesLimited implements WorldInterface {
         return list;
     }
 
+    @Override
+    public <T extends Entity> List<T> getEntitiesLimited(TypeFilter<Entity, T> filter, @Nullable Box box, Predicate<? super T> predicate, int limit) {
+        this.getProfiler().visit("getEntities");
+        List<T> list = Lists.newArrayList();
+        if (limit <= 0) return list;
+        Consumer<T> action = (entity) -> {
+            if (predicate.test(entity)) {
+                list.add(entity);
+                if (list.size() >= limit) {
+                    throw CONTROL_FLOW_EXCEPTION;
+                }
+            }
+        };
+        try {
+            if (box == null)
+                this.getEntityLookup().forEach(filter, action);
+            else
+                this.getEntityLookup().forEachIntersects(filter, box, action);
+        } catch (RuntimeException e) {
+            if (e != CONTROL_FLOW_EXCEPTION)
+                throw e;
+        }
+        return list;
+    }
+
     @Shadow
     public abstract Profiler getProfiler();
 
@@ -0,0 +1,292 @@
+package carpet.script;
+
+import carpet.CarpetSettings;
+import carpet.script.Expression.ExpressionNode;
+import carpet.script.value.BooleanValue;
+import carpet.script.value.EntityValue;
+import carpet.script.value.ListValue;
+import carpet.script.value.MapValue;
+import carpet.script.value.NullValue;
+import carpet.script.value.NumericValue;
+import carpet.script.value.StringValue;
+import carpet.script.value.Value;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Stores optimized parse trees of modules on disk, so loading unchanged apps and libraries
+ * skips tokenizing, parsing and optimizing their code. Entries are keyed by a hash of the code, carpet version,
+ * parser options and names of all available functions, so code depending on functions of other extensions
+ * or of a different carpet version doesn't pick up stale trees.
+ * Only trees with constants of basic types are stored, the rest is parsed every time as usual.
+ */
+public class AstCache
+{
+    private static final int FORMAT = 1;
+    private static final String EXTENSION = ".ast";
+    private static final int HASH_LENGTH = 64;
+
+    private static Path location = null;
+
+    /**
+     * @param folder folder to keep the trees in, or null to disable the cache
+     */
+    public static void setLocation(Path folder)
+    {
+        location = folder;
+    }
+
+    private static class NotCacheableException extends RuntimeException
+    {
+        NotCacheableException(String message)
+        {
+            super(message, null, false, false);
+        }
+    }
+
+    static String keyFor(Expression expression, String code, boolean allowComments, boolean allowNewlineSubstitutions)
+    {
+        if (location == null || expression.module == null) return null;
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((FORMAT+"|"+CarpetSettings.carpetVersion+"|"+allowComments+"|"+allowNewlineSubstitutions+"|").getBytes(StandardCharsets.UTF_8));
+            for (String name : new TreeSet<>(expression.getFunctionNames())) digest.update((name+",").getBytes(StandardCharsets.UTF_8));
+            digest.update("|".getBytes(StandardCharsets.UTF_8));
+            for (String name : new TreeSet<>(expression.getOperatorNames())) digest.update((name+",").getBytes(StandardCharsets.UTF_8));
+            digest.update("|".getBytes(StandardCharsets.UTF_8));
+            digest.update(code.getBytes(StandardCharsets.UTF_8));
+            String hash = new BigInteger(1, digest.digest()).toString(16);
+            return "0".repeat(HASH_LENGTH - hash.length()) + hash;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return null;
+        }
+    }
+
+    private static Path fileFor(Expression expression, String key)
+    {
+        return location.resolve(expression.module.getName()+"-"+key+EXTENSION);
+    }
+
+    /**
+     * @return cached tree, or null if there is none
+     */
+    static ExpressionNode load(Expression expression, String key)
+    {
+        Path file = fileFor(expression, key);
+        if (!Files.isRegularFile(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+        {
+            if (in.readInt() != FORMAT) return null;
+            return readNode(expression, in);
+        }
+        catch (IOException | RuntimeException exc)
+        {
+            CarpetScriptServer.LOG.warn("Ignoring broken cached code of "+expression.getModuleName()+": "+exc.getMessage());
+            try
+            {
+                Files.deleteIfExists(file);
+            }
+            catch (IOException ignored) { }
+            return null;
+        }
+    }
+
+    static void store(Expression expression, String key, ExpressionNode root)
+    {
+        Path file = fileFor(expression, key);
+        Path temp = file.resolveSibling(file.getFileName()+".tmp");
+        try
+        {
+            Files.createDirectories(location);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+            {
+                out.writeInt(FORMAT);
+                writeNode(root, out);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            removeOutdated(expression.module.getName(), file);
+        }
+        catch (NotCacheableException exc)
+        {
+            if (CarpetSettings.scriptsDebugging)
+                CarpetScriptServer.LOG.info("Not caching code of "+expression.getModuleName()+": "+exc.getMessage());
+            deleteQuietly(temp);
+        }
+        catch (IOException exc)
+        {
+            CarpetScriptServer.LOG.warn("Failed to cache code of "+expression.getModuleName()+": "+exc.getMessage());
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void removeOutdated(String module, Path current) throws IOException
+    {
+        try (Stream<Path> files = Files.list(location))
+        {
+            files.filter(f -> {
+                String name = f.getFileName().toString();
+                return name.startsWith(module+"-") && name.endsWith(EXTENSION)
+                        && name.length() == module.length() + 1 + HASH_LENGTH + EXTENSION.length()
+                        && !f.equals(current);
+            }).forEach(AstCache::deleteQuietly);
+        }
+    }
+
+    private static void deleteQuietly(Path file)
+    {
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException ignored) { }
+    }
+
+    private static void writeNode(ExpressionNode node, DataOutputStream out) throws IOException
+    {
+        Tokenizer.Token token = node.token;
+        out.writeUTF(token.type.name());
+        writeString(token.surface, out);
+        out.writeInt(token.pos);
+        out.writeInt(token.linepos);
+        out.writeInt(token.lineno);
+        if (node.op instanceof LazyValue.Constant)
+        {
+            out.writeBoolean(true);
+            writeValue(((LazyValue.Constant) node.op).get(), out);
+            return;
+        }
+        if (node.op instanceof LazyValue.ContextFreeLazyValue)
+            throw new NotCacheableException("unexpected precomputed value");
+        out.writeBoolean(false);
+        out.writeInt(node.args.size());
+        for (ExpressionNode arg : node.args) writeNode(arg, out);
+    }
+
+    private static void writeString(String string, DataOutputStream out) throws IOException
+    {
+        // modified UTF-8 is limited to 64kB
+        if (string.length() > 0x3fff) throw new NotCacheableException("string constant too long");
+        out.writeUTF(string);
+    }
+
+    private static ExpressionNode readNode(Expression expression, DataInputStream in) throws IOException
+    {
+        Tokenizer.Token token = new Tokenizer.Token();
+        token.type = Tokenizer.Token.TokenType.valueOf(in.readUTF());
+        token.surface = in.readUTF();
+        token.pos = in.readInt();
+        token.linepos = in.readInt();
+        token.lineno = in.readInt();
+        if (in.readBoolean())
+            return ExpressionNode.ofConstant(readValue(in), token);
+        int size = in.readInt();
+        List<ExpressionNode> args = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) args.add(readNode(expression, in));
+        return expression.codeNode(token, size == 0 ? Collections.emptyList() : args);
+    }
+
+    private static void writeValue(Value value, DataOutputStream out) throws IOException
+    {
+        if (value instanceof NullValue)
+        {
+            out.writeByte(0);
+        }
+        else if (value instanceof BooleanValue)
+        {
+            out.writeByte(value.getBoolean() ? 1 : 2);
+        }
+        else if (value.getClass() == NumericValue.class)
+        {
+            NumericValue number = (NumericValue) value;
+            if (number.isLong())
+            {
+                out.writeByte(3);
+                out.writeLong(number.getLong());
+            }
+            else
+            {
+                out.writeByte(4);
+                out.writeDouble(number.getDouble());
+            }
+        }
+        // resolved feature names are stored as names, and resolved again when the code is read back
+        else if (value.getClass() == StringValue.class || value instanceof EntityValue.Feature)
+        {
+            out.writeByte(5);
+            writeString(value.getString(), out);
+        }
+        else if (value.getClass() == ListValue.class)
+        {
+            List<Value> items = ((ListValue) value).getItems();
+            out.writeByte(6);
+            out.writeInt(items.size());
+            for (Value item : items) writeValue(item, out);
+        }
+        else if (value.getClass() == MapValue.class)
+        {
+            Map<Value, Value> map = ((MapValue) value).getMap();
+            out.writeByte(7);
+            out.writeInt(map.size());
+            for (Map.Entry<Value, Value> entry : map.entrySet())
+            {
+                writeValue(entry.getKey(), out);
+                writeValue(entry.getValue(), out);
+            }
+        }
+        else
+        {
+            throw new NotCacheableException("constant of type "+value.getTypeString());
+        }
+    }
+
+    private static Value readValue(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+            case 0: return Value.NULL;
+            case 1: return Value.TRUE;
+            case 2: return Value.FALSE;
+            case 3: return new NumericValue(in.readLong());
+            case 4: return new NumericValue(in.readDouble());
+            case 5: return new StringValue(in.readUTF());
+            case 6:
+            {
+                int size = in.readInt();
+                List<Value> items = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) items.add(readValue(in));
+                return ListValue.wrap(items);
+            }
+            case 7:
+            {
+                int size = in.readInt();
+                Map<Value, Value> map = new HashMap<>();
+                for (int i = 0; i < size; i++) map.put(readValue(in), readValue(in));
+                return MapValue.wrap(map);
+            }
+            default:
+                throw new IOException("Unknown value type "+type);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package carpet.script;
 
-import carpet.script.value.Value;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.util.math.BlockPos;
 
@@ -25,8 +24,8 @@ public class CarpetContext extends Context
     protected void initialize()
     {
         super.initialize();
-        variables.put("_x", (c, t) -> Value.ZERO);
-        variables.put("_y", (c, t) -> Value.ZERO);
-        variables.put("_z", (c, t) -> Value.ZERO);
+        initializeVariable("_x");
+        initializeVariable("_y");
+        initializeVariable("_z");
     }
 }
@@ -3,6 +3,7 @@ package carpet.script;
 import carpet.CarpetServer;
 import carpet.CarpetSettings;
 import carpet.helpers.TickSpeed;
+import carpet.script.exception.ExpressionException;
 import carpet.script.exception.IntegrityException;
 import carpet.script.exception.InternalExpressionException;
 import carpet.script.exception.InvalidCallbackException;
@@ -11,6 +12,7 @@ import carpet.script.value.BlockValue;
 import carpet.script.value.BooleanValue;
 import carpet.script.value.EntityValue;
 import carpet.script.value.FunctionValue;
+import carpet.script.value.GeneratorValue;
 import carpet.script.value.ListValue;
 import carpet.script.value.NBTSerializableValue;
 import carpet.script.value.NumericValue;
@@ -71,6 +73,7 @@ import java.util.stream.Collectors;
 public class CarpetEventServer
 {
     public final List<ScheduledCall> scheduledCalls = new LinkedList<>();
+    private final List<GeneratorValue> tickedGenerators = new ArrayList<>();
     public final CarpetScriptServer scriptServer;
     private static final List<Value> NOARGS = Collections.emptyList();
     public final Map<String, Event> customEvents = new HashMap<>();
@@ -1165,7 +1168,8 @@ public class CarpetEventServer
         {
             ScheduledCall call = eventIterator.next();
             call.dueTime--;
-            if (call.dueTime <= 0)
+            // apps that used up their budget for this tick get their calls in the next one
+            if (call.dueTime <= 0 && !call.ctx.host.isOutOfBudget())
             {
                 currentCalls.add(call);
                 eventIterator.remove();
@@ -1175,8 +1179,45 @@ public class CarpetEventServer
         {
             call.execute();
         }
+        tickGenerators();
 
     }
+    /**
+     * Advances the generator by one value each tick, until it finishes or gets closed
+     */
+    public void tickGenerator(GeneratorValue generator)
+    {
+        if (!tickedGenerators.contains(generator)) tickedGenerators.add(generator);
+    }
+
+    private void tickGenerators()
+    {
+        // generators may start ticking other generators
+        for (GeneratorValue generator : new ArrayList<>(tickedGenerators))
+        {
+            if (generator.getHost().isOutOfBudget()) continue;
+            try
+            {
+                generator.next();
+            }
+            catch (ExpressionException exc)
+            {
+                generator.getHost().handleExpressionException("Generator failed", exc);
+                generator.close();
+            }
+            catch (InternalExpressionException exc)
+            {
+                // paused until the app gets its budget for the next tick
+                if (!generator.isOutOfBudget())
+                {
+                    generator.getHost().handleExpressionException("Generator failed", generator.promote(exc));
+                    generator.close();
+                }
+            }
+            if (generator.isFinished()) tickedGenerators.remove(generator);
+        }
+    }
+
     public void scheduleCall(CarpetContext context, FunctionValue function, List<Value> args, long due)
     {
         scheduledCalls.add(new ScheduledCall(context, function, args, due));
@@ -16,6 +16,7 @@ import carpet.script.exception.InvalidCallbackException;
 import carpet.script.utils.AppStoreManager;
 import carpet.script.value.EntityValue;
 import carpet.script.value.FunctionValue;
+import carpet.script.value.GeneratorValue;
 import carpet.script.value.ListValue;
 import carpet.script.value.MapValue;
 import carpet.script.value.NumericValue;
@@ -60,7 +61,12 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -78,6 +84,9 @@ public class CarpetScriptHost extends ScriptHost
     private NbtElement globalState;
     private int saveTimeout;
     public boolean persistenceRequired;
+    /** world changes of tasks are queued to be applied in chunks, see {@link DockQueue} */
+    public boolean batchDocking;
+    private DockQueue dockQueue;
 
     public Map<Value, Value> appConfig;
     public Map<String, CommandArgument> appArgTypes;
@@ -100,6 +109,7 @@ public class CarpetScriptHost extends ScriptHost
         else if (parent != null)
         {
             persistenceRequired = ((CarpetScriptHost)parent).persistenceRequired;
+            batchDocking = ((CarpetScriptHost)parent).batchDocking;
         }
         appConfig = config;
         appArgTypes = argTypes;
@@ -308,6 +318,20 @@ public class CarpetScriptHost extends ScriptHost
             Map<Value, Value> config = ((MapValue) ret).getMap();
             setPerPlayer(config.getOrDefault(new StringValue("scope"), new StringValue("player")).getString().equalsIgnoreCase("player"));
             persistenceRequired = config.getOrDefault(new StringValue("stay_loaded"), Value.TRUE).getBoolean();
+            compileCode = config.getOrDefault(new StringValue("compile"), Value.FALSE).getBoolean();
+            tickBudget = Math.max(0L, NumericValue.asNumber(config.getOrDefault(new StringValue("tick_budget"), Value.ZERO)).getLong());
+            batchDocking = config.getOrDefault(new StringValue("batch_docking"), Value.FALSE).getBoolean();
+            taskSettings = TaskPool.Settings.fromConfig(config, "task_", TaskPool.Settings.DEFAULT);
+            poolSettings = new HashMap<>();
+            Value pools = config.get(new StringValue("task_pools"));
+            if (pools != null)
+            {
+                if (!(pools instanceof MapValue)) throw new InternalExpressionException("App task pools not defined as a map");
+                ((MapValue) pools).getMap().forEach((pool, settings) -> {
+                    if (!(settings instanceof MapValue)) throw new InternalExpressionException("Settings of task pool "+pool.getString()+" not defined as a map");
+                    poolSettings.put(pool, TaskPool.Settings.fromConfig(((MapValue) settings).getMap(), "", taskSettings));
+                });
+            }
             // check requires
             Value loadRequirements = config.get(new StringValue("requires"));
             if (loadRequirements instanceof FunctionValue)
@@ -909,6 +933,7 @@ public class CarpetScriptHost extends ScriptHost
     @Override
     public void onClose()
     {
+        scriptServer.cancelRegenerations(this);
         super.onClose();
         FunctionValue closing = getFunction("__on_close");
         if (closing != null && (parent != null || !isPerUser()))
@@ -1009,6 +1034,90 @@ public class CarpetScriptHost extends ScriptHost
     }
 
 
+    private synchronized DockQueue getDockQueue()
+    {
+        // players' instances of the app share the queue, so their changes apply in order
+        if (parent != null) return ((CarpetScriptHost) parent).getDockQueue();
+        if (dockQueue == null) dockQueue = new DockQueue(mainThread());
+        return dockQueue;
+    }
+
+    /**
+     * @return executor handing actions over to the main thread, which runs them even while it waits for a generator
+     */
+    private Executor mainThread()
+    {
+        return action -> runOnMainThread(action, scriptServer.server);
+    }
+
+    /**
+     * Runs the action on the main thread and waits for it, after world changes of the app queued before it
+     */
+    public void dock(Runnable action)
+    {
+        if (scriptServer.server.isOnThread())
+        {
+            action.run();
+            return;
+        }
+        // generators hand it over to the thread waiting for them, which may be the main thread
+        Executor generatorConsumer = GeneratorValue.mainThreadExecutor();
+        CompletableFuture<Void> done;
+        if (generatorConsumer != null)
+            done = CompletableFuture.runAsync(action, generatorConsumer);
+        else if (batchDocking)
+            done = getDockQueue().submit(action);
+        else
+            done = CompletableFuture.runAsync(action, mainThread());
+        try
+        {
+            done.join();
+        }
+        catch (CompletionException exc)
+        {
+            if (exc.getCause() instanceof RuntimeException) throw (RuntimeException) exc.getCause();
+            throw exc;
+        }
+    }
+
+    /**
+     * Runs the world change on the main thread, without waiting for it if the app batches its changes
+     */
+    public void dockChange(Runnable action)
+    {
+        if (postsChanges())
+            getDockQueue().post(action);
+        else
+            dock(action);
+    }
+
+    /**
+     * Runs the world change on the main thread, like {@link #dockChange(Runnable)}
+     * @return result of the change, or true if the app batches its changes and doesn't wait for it
+     */
+    public boolean dockChange(BooleanSupplier change)
+    {
+        if (postsChanges())
+        {
+            getDockQueue().post(change::getAsBoolean);
+            return true;
+        }
+        AtomicBoolean result = new AtomicBoolean();
+        dock(() -> result.set(change.getAsBoolean()));
+        return result.get();
+    }
+
+    private boolean postsChanges()
+    {
+        return batchDocking && !scriptServer.server.isOnThread() && GeneratorValue.mainThreadExecutor() == null;
+    }
+
+    @Override
+    protected int currentTick()
+    {
+        return scriptServer.server.getTicks();
+    }
+
     public void tick()
     {
         if (this.saveTimeout > 0)
@@ -1084,7 +1193,7 @@ public class CarpetScriptHost extends ScriptHost
         format += " ";
         List<String> stringsToFormat = new ArrayList<>();
         TreeMap<Integer, String> posToLocal = new TreeMap<>(); //Holds whether a local variable name is found at a specific index
-        for (String local: context.variables.keySet())
+        for (String local: context.getAllVariableNames())
         {
             int pos = line.indexOf(local);
             while (pos != -1)
@@ -1108,7 +1217,7 @@ public class CarpetScriptHost extends ScriptHost
             stringsToFormat.add(format + foundLocal.getValue());
             String value;
             try {
-                value = context.variables.get(foundLocal.getValue()).evalValue(context).getPrettyString();
+                value = context.getVariable(foundLocal.getValue()).evalValue(context).getPrettyString();
             } catch (StackOverflowError e) {
                 value = "Exception while rendering variable, there seems to be a recursive reference in there";
             }
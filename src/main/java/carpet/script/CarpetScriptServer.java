@@ -21,6 +21,7 @@ import carpet.script.language.Loops;
 import carpet.script.language.Sys;
 import carpet.script.language.Threading;
 import carpet.script.utils.AppStoreManager;
+import carpet.script.utils.ChunkRegenerationJob;
 import carpet.script.value.FunctionValue;
 import carpet.utils.CarpetProfiler;
 import carpet.utils.Messenger;
@@ -32,6 +33,8 @@ import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.WorldSavePath;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -50,6 +53,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -66,6 +70,8 @@ public class CarpetScriptServer
     public int tickDepth;
     private  Set<String> holyMoly;
     public  CarpetEventServer events;
+    // jobs with apps that started them, which cancel them when they unload
+    private final Map<ChunkRegenerationJob, ScriptHost> regenerations = new ConcurrentHashMap<>();
 
     private static final List<Module> bundledModuleData = new ArrayList<>();
     private static final List<Module> ruleModuleData = new ArrayList<>();
@@ -111,6 +117,7 @@ public class CarpetScriptServer
     public CarpetScriptServer(MinecraftServer server)
     {
         this.server = server;
+        AstCache.setLocation(server.getSavePath(WorldSavePath.ROOT).resolve("scripts/cache"));
         init();
     }
 
@@ -374,6 +381,7 @@ public class CarpetScriptServer
 
     public void tick()
     {
+        ScriptProfiler.tick();
         CarpetProfiler.ProfilerToken token;
         token = CarpetProfiler.start_section(null, "Scarpet schedule", CarpetProfiler.TYPE.GENERAL);
         events.handleEvents.getWhileDisabled( () -> {events.tick(); return null;});
@@ -384,6 +392,28 @@ public class CarpetScriptServer
             host.tick();
         }
         CarpetProfiler.end_current_section(token);
+        regenerations.keySet().removeIf(ChunkRegenerationJob::isDone);
+        regenerations.keySet().forEach(ChunkRegenerationJob::tick);
+    }
+
+    /**
+     * Starts regenerating chunks in the background, taking a few milliseconds of each tick,
+     * or as much as it needs if the main thread waits for it
+     */
+    public ChunkRegenerationJob regenerateChunks(ScriptHost host, ServerWorld world, List<ChunkPos> chunks, boolean mainThreadWaits)
+    {
+        ChunkRegenerationJob job = new ChunkRegenerationJob(world, chunks, mainThreadWaits ? 0L : ChunkRegenerationJob.TICK_BUDGET_NANOS);
+        regenerations.put(job, host);
+        job.start();
+        return job;
+    }
+
+    /**
+     * Cancels regeneration jobs the app started, once it unloads
+     */
+    public void cancelRegenerations(ScriptHost host)
+    {
+        regenerations.forEach((job, owner) -> { if (owner == host) job.cancel(); });
     }
 
     public void onClose()
@@ -3,7 +3,9 @@ package carpet.script;
 import carpet.script.exception.InternalExpressionException;
 import carpet.script.value.Value;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -27,6 +29,13 @@ public class Context
 
     public Map<String, LazyValue> variables = new HashMap<>();
 
+    /**
+     * slot backed locals of a function call, see {@link FrameLayout}.
+     * Variables that the function doesn't refer to by name still end up in the variables map
+     */
+    FrameLayout layout = null;
+    LazyValue[] frame = null;
+
     public final ScriptHost host;
 
     public Context(ScriptHost host)
@@ -36,33 +45,94 @@ public class Context
 
     public LazyValue getVariable(String name)
     {
+        if (layout != null)
+        {
+            int slot = layout.slotOf(name);
+            if (slot >= 0) return frame[slot];
+        }
         return variables.get(name);
     }
 
     public void setVariable(String name, LazyValue lv)
     {
+        if (layout != null)
+        {
+            int slot = layout.slotOf(name);
+            if (slot >= 0)
+            {
+                frame[slot] = lv;
+                return;
+            }
+        }
         variables.put(name, lv);
     }
 
     public void delVariable(String variable)
     {
+        if (layout != null)
+        {
+            int slot = layout.slotOf(variable);
+            if (slot >= 0)
+            {
+                frame[slot] = null;
+                return;
+            }
+        }
         variables.remove(variable);
     }
 
     public void removeVariablesMatching(String varname)
     {
+        if (layout != null)
+        {
+            for (int i = 0; i < frame.length; i++)
+                if (layout.nameOf(i).startsWith(varname)) frame[i] = null;
+        }
         variables.entrySet().removeIf(e -> e.getKey().startsWith(varname));
     }
 
     public Context with(String variable, LazyValue lv)
     {
-        variables.put(variable, lv);
+        setVariable(variable, lv);
         return this;
     }
 
     public Set<String> getAllVariableNames()
     {
-        return variables.keySet();
+        if (layout == null) return variables.keySet();
+        Set<String> names = new HashSet<>(variables.keySet());
+        for (int i = 0; i < frame.length; i++)
+            if (frame[i] != null) names.add(layout.nameOf(i));
+        return names;
+    }
+
+    /**
+     * Stores a local in a slot of a context created with {@link #recreate(FrameLayout)}
+     */
+    public void setLocal(int slot, Value value)
+    {
+        frame[slot] = (c, t) -> value;
+    }
+
+    /**
+     * Makes this context read and write the same local variables as the other one
+     */
+    public void shareVariablesWith(Context other)
+    {
+        variables = other.variables;
+        layout = other.layout;
+        frame = other.frame;
+    }
+
+    /**
+     * Forgets all local variables, so the context can run the next call of the same function.
+     * Subclasses set up their own special variables again in {@link #initialize()}
+     */
+    public void resetLocals()
+    {
+        variables.clear();
+        if (frame != null) Arrays.fill(frame, null);
+        initialize();
     }
 
     public Context recreate()
@@ -72,12 +142,38 @@ public class Context
         return ctx;
     }
 
+    /**
+     * Creates a new context for a function call with its locals kept in slots of the layout
+     */
+    public Context recreate(FrameLayout layout)
+    {
+        Context ctx = duplicate();
+        ctx.layout = layout;
+        ctx.frame = layout.newFrame();
+        ctx.initialize();
+        return ctx;
+    }
+
     protected void initialize()
     {
         //special variables for second order functions so we don't need to check them all the time
-        variables.put("_", (c, t) -> Value.ZERO);
-        variables.put("_i", (c, t) -> Value.ZERO);
-        variables.put("_a", (c, t) -> Value.ZERO);
+        initializeVariable("_");
+        initializeVariable("_i");
+        initializeVariable("_a");
+    }
+
+    /**
+     * Sets a special variable to zero. Slot backed contexts skip the ones their function never refers to.
+     */
+    protected void initializeVariable(String name)
+    {
+        if (layout == null)
+        {
+            variables.put(name, LazyValue.ZERO);
+            return;
+        }
+        int slot = layout.slotOf(name);
+        if (slot >= 0) frame[slot] = LazyValue.ZERO;
     }
 
     public Context duplicate()
@@ -134,12 +230,27 @@ public class Context
         @Override
         public Set<String> getAllVariableNames() { badProgrammer(); return null;}
 
+        @Override
+        public void setLocal(int slot, Value value) { badProgrammer(); }
+
+        @Override
+        public void shareVariablesWith(Context other) { badProgrammer(); }
+
+        @Override
+        public void resetLocals() { badProgrammer(); }
+
         @Override
         public Context recreate() { badProgrammer(); return null;}
 
+        @Override
+        public Context recreate(FrameLayout layout) { badProgrammer(); return null;}
+
         @Override
         protected void initialize() { badProgrammer();}
 
+        @Override
+        protected void initializeVariable(String name) { badProgrammer();}
+
         @Override
         public Context duplicate() { badProgrammer(); return null;}
     }
@@ -0,0 +1,128 @@
+package carpet.script;
+
+import carpet.script.exception.InternalExpressionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Changes tasks of an app make to the world, applied in order on the main thread.
+ * Instead of a round trip to the main thread for each of them, the main thread applies them in chunks,
+ * each pass taking no more than a few milliseconds, so tasks changing lots of blocks don't stall the server,
+ * and tasks that don't need to wait for their changes don't wait until the queue fills up.
+ */
+public class DockQueue
+{
+    private static final long PASS_NANOS = 5_000_000L;
+    private static final int CHUNK = 256;
+    /** queued actions before tasks wait for the main thread to catch up */
+    private static final int CAPACITY = 16384;
+
+    private static class Entry
+    {
+        final Runnable action;
+        final CompletableFuture<Void> done;
+
+        Entry(Runnable action, CompletableFuture<Void> done)
+        {
+            this.action = action;
+            this.done = done;
+        }
+    }
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final Semaphore capacity = new Semaphore(CAPACITY);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Executor mainThread;
+
+    public DockQueue(Executor mainThread)
+    {
+        this.mainThread = mainThread;
+    }
+
+    /**
+     * Queues the action without waiting for it to run, but waiting for room in the queue.
+     * Errors are logged, since nobody waits for them. Not to be called from the main thread.
+     */
+    public void post(Runnable action)
+    {
+        add(new Entry(action, null));
+    }
+
+    /**
+     * Queues the action, completing the future once it runs, after all actions queued before it.
+     * Not to be called from the main thread, since it waits for room in the queue.
+     */
+    public CompletableFuture<Void> submit(Runnable action)
+    {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        add(new Entry(action, done));
+        return done;
+    }
+
+    private void add(Entry entry)
+    {
+        try
+        {
+            capacity.acquire();
+        }
+        catch (InterruptedException exc)
+        {
+            Thread.currentThread().interrupt();
+            throw new InternalExpressionException("Thread interrupted");
+        }
+        entries.add(entry);
+        schedule();
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    private void schedule()
+    {
+        if (scheduled.compareAndSet(false, true)) mainThread.execute(this::drain);
+    }
+
+    private void drain()
+    {
+        long deadline = System.nanoTime() + PASS_NANOS;
+        List<CompletableFuture<Void>> completed = new ArrayList<>(CHUNK);
+        do
+        {
+            for (int i = 0; i < CHUNK; i++)
+            {
+                Entry entry = entries.poll();
+                if (entry == null) break;
+                try
+                {
+                    entry.action.run();
+                    if (entry.done != null) completed.add(entry.done);
+                }
+                catch (RuntimeException exc)
+                {
+                    if (entry.done != null) entry.done.completeExceptionally(exc);
+                    else CarpetScriptServer.LOG.error("Error while applying docked change of an app", exc);
+                }
+                finally
+                {
+                    capacity.release();
+                }
+            }
+            // waiting tasks resume once the whole chunk is done
+            completed.forEach(f -> f.complete(null));
+            completed.clear();
+        }
+        while (!entries.isEmpty() && System.nanoTime() < deadline);
+        scheduled.set(false);
+        // the rest waits for the next pass, letting the server run other tasks and ticks in between
+        if (!entries.isEmpty()) schedule();
+    }
+}
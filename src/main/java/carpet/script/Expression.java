@@ -39,6 +39,8 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -87,6 +89,7 @@ public class Expression
 
     private final Map<String, ILazyFunction> functions = new  Object2ObjectOpenHashMap<>();
     public Set<String> getFunctionNames() {return functions.keySet();}
+    public Set<String> getOperatorNames() {return operators.keySet();}
 
     private final Map<String, String> functionalEquivalence = new Object2ObjectOpenHashMap<>();
     public void addFunctionalEquivalence(String operator, String function)
@@ -96,6 +99,17 @@ public class Expression
         functionalEquivalence.put(operator, function);
     }
 
+    private final Map<String, Map<Integer, Function<Value, Value>>> constantArguments = new Object2ObjectOpenHashMap<>();
+    /**
+     * Lets a function or operator take the value of its argument, when it is a constant, resolved once when the code is parsed,
+     * for instance to names of things it would otherwise look up on every call. Values that can't be resolved are returned as they are.
+     */
+    public void addConstantArgumentResolver(String name, int argument, Function<Value, Value> resolver)
+    {
+        assert functions.containsKey(name) || operators.containsKey(name);
+        constantArguments.computeIfAbsent(name, n -> new HashMap<>()).put(argument, resolver);
+    }
+
     private final Map<String, Value> constants = Map.of(
             "euler", Arithmetic.euler,
             "pi", Arithmetic.PI,
@@ -465,13 +479,13 @@ public class Expression
 
     public void addMathematicalUnaryIntFunction(String name, Function<Double, Long> fun)
     {
-        addUnaryFunction(name, (v) -> new NumericValue(fun.apply(NumericValue.asNumber(v).getDouble())));
+        addUnaryFunction(name, (v) -> NumericValue.of((long) fun.apply(NumericValue.asNumber(v).getDouble())));
     }
 
     public void addMathematicalBinaryIntFunction(String name, BiFunction<Long, Long, Long> fun)
     {
         addBinaryFunction(name, (w, v) ->
-                new NumericValue(fun.apply(NumericValue.asNumber(w).getLong(), NumericValue.asNumber(v).getLong())));
+                NumericValue.of((long) fun.apply(NumericValue.asNumber(w).getLong(), NumericValue.asNumber(v).getLong())));
     }
 	
     public void addMathematicalBinaryFunction(String name, BiFunction<Double, Double, Double> fun)
@@ -665,7 +679,8 @@ public class Expression
         }
         if (contextValues.isEmpty()) contextValues = null;
 
-        FunctionValue result =  new FunctionValue(expr, token, name, code, arguments, varArgs, contextValues);
+        Set<String> calls = contextValues == null ? pureDefinitions.get(token) : null;
+        FunctionValue result =  new FunctionValue(expr, token, name, code, arguments, varArgs, contextValues, frameLayouts.get(token), calls);
         // do not store lambda definitions
         if (!name.equals("_")) context.host.addUserDefinedFunction(context, module, name, result);
         return result;
@@ -740,6 +755,38 @@ public class Expression
         return var;
     }
 
+    /**
+     * Variable lookup node. Once the code is parsed, variables inside function bodies get a slot in the
+     * function's {@link FrameLayout}, and are read directly from the frame when evaluated in that function's call.
+     */
+    private class VariableAccess implements LazyValue
+    {
+        private final String name;
+        private FrameLayout layout = null;
+        private int slot = -1;
+
+        VariableAccess(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Value evalValue(Context c, Context.Type type)
+        {
+            if (slot >= 0 && c.layout == layout)
+            {
+                LazyValue value = c.frame[slot];
+                if (value != null) return value.evalValue(c, type);
+            }
+            return getOrSetAnyVariable(c, name).evalValue(c, type);
+        }
+    }
+
+    /** slot layouts of function bodies, by the token of their '->' definition */
+    private final Map<Tokenizer.Token, FrameLayout> frameLayouts = new HashMap<>();
+    /** names of functions called by definitions of functions which results otherwise depend only on their arguments */
+    private final Map<Tokenizer.Token, Set<String>> pureDefinitions = new HashMap<>();
+
     public static final Expression none = new Expression("null");
     /**
      * @param expression .
@@ -1001,15 +1048,13 @@ public class Expression
                 case UNARY_OPERATOR:
                 {
                     final ExpressionNode node = nodeStack.pop();
-                    LazyValue result = (c, t) -> operators.get(token.surface).lazyEval(c, t, this, token, node.op, null).evalValue(c, t);
-                    nodeStack.push(new ExpressionNode(result, Collections.singletonList(node), token));
+                    nodeStack.push(codeNode(token, Collections.singletonList(node)));
                     break;
                 }
                 case OPERATOR:
                     final ExpressionNode v1 = nodeStack.pop();
                     final ExpressionNode v2 = nodeStack.pop();
-                    LazyValue result = (c,t) -> operators.get(token.surface).lazyEval(c, t,this, token, v2.op, v1.op).evalValue(c, t);
-                    nodeStack.push(new ExpressionNode(result, List.of(v2, v1), token ));
+                    nodeStack.push(codeNode(token, List.of(v2, v1)));
                     break;
                 case VARIABLE:
                     Value constant = getConstantFor(token.surface);
@@ -1019,22 +1064,20 @@ public class Expression
                         nodeStack.push(new ExpressionNode(LazyValue.ofConstant(constant), Collections.emptyList(), token));
                     }
                     else {
-                        nodeStack.push(new ExpressionNode(((c, t) -> getOrSetAnyVariable(c, token.surface).evalValue(c, t)), Collections.emptyList(), token));
+                        nodeStack.push(codeNode(token, Collections.emptyList()));
                     }
                     break;
                 case FUNCTION:
                     String name = token.surface;
-                    ILazyFunction f;
                     ArrayList<ExpressionNode> p;
                     boolean isKnown = functions.containsKey(name); // globals will be evaluated lazily, not at compile time via .
                     if (isKnown)
                     {
-                        f = functions.get(name);
+                        ILazyFunction f = functions.get(name);
                         p = new ArrayList<>(!f.numParamsVaries() ? f.getNumParams() : 0);
                     }
                     else // potentially unknown function or just unknown function
                     {
-                        f = functions.get("call");
                         p = new ArrayList<>();
                     }
                     // pop parameters off the stack until we hit the start of
@@ -1054,12 +1097,7 @@ public class Expression
                     {
                         nodeStack.pop();
                     };
-                    List<LazyValue> params = p.stream().map(n -> n.op).collect(Collectors.toList());
-
-                    nodeStack.push(new ExpressionNode(
-                            (c, t) -> f.lazyEval(c, t, this, token, params).evalValue(c, t),
-                            p,token
-                    ));
+                    nodeStack.push(codeNode(token, p));
                     break;
                 case OPEN_PAREN:
                     nodeStack.push(ExpressionNode.PARAMS_START);
@@ -1101,16 +1139,86 @@ public class Expression
         return nodeStack.pop();
     }
 
+    /**
+     * Creates a node for a variable, operator or function call of the parsed code.
+     * Unknown functions should already be turned into calls to 'call' with the function name as its first argument.
+     */
+    ExpressionNode codeNode(Tokenizer.Token token, List<ExpressionNode> args)
+    {
+        switch (token.type)
+        {
+            case UNARY_OPERATOR:
+            {
+                ExpressionNode node = args.get(0);
+                return new ExpressionNode((c, t) -> operators.get(token.surface).lazyEval(c, t, this, token, node.op, null).evalValue(c, t), args, token);
+            }
+            case OPERATOR:
+            {
+                resolveConstantArguments(token, args);
+                ExpressionNode left = args.get(0);
+                ExpressionNode right = args.get(1);
+                return new ExpressionNode((c,t) -> operators.get(token.surface).lazyEval(c, t,this, token, left.op, right.op).evalValue(c, t), args, token);
+            }
+            case VARIABLE:
+                return new ExpressionNode(new VariableAccess(token.surface), Collections.emptyList(), token);
+            case FUNCTION:
+            {
+                ILazyFunction f = functions.get(token.surface);
+                if (f == null) throw new InternalExpressionException("Unknown function "+token.surface);
+                if (token.surface.equals("call") && !args.isEmpty())
+                {
+                    // calls by a name known when parsing can remember the function they resolved to
+                    ExpressionNode name = args.get(0);
+                    if (name.token.type.isConstant() && name.op != null && name.op.getClass() == LazyValue.Constant.class)
+                        name.op = new FunctionCallSite(((LazyValue.Constant) name.op).get());
+                }
+                resolveConstantArguments(token, args);
+                List<LazyValue> params = args.stream().map(n -> n.op).collect(Collectors.toList());
+                return new ExpressionNode((c, t) -> f.lazyEval(c, t, this, token, params).evalValue(c, t), args, token);
+            }
+            default:
+                throw new InternalExpressionException("Unexpected token '" + token.surface + "'");
+        }
+    }
+
+    private void resolveConstantArguments(Tokenizer.Token token, List<ExpressionNode> args)
+    {
+        Map<Integer, Function<Value, Value>> resolvers = constantArguments.get(token.surface);
+        if (resolvers == null) return;
+        resolvers.forEach((index, resolver) ->
+        {
+            if (index >= args.size()) return;
+            ExpressionNode arg = args.get(index);
+            if (arg.token.type.isConstant() && arg.op != null && arg.op.getClass() == LazyValue.Constant.class)
+                arg.op = new LazyValue.Constant(resolver.apply(((LazyValue.Constant) arg.op).get()));
+        });
+    }
+
     private LazyValue getAST(Context context)
     {
         //Stack<LazyValue> stack = new Stack<>();
+        Context optimizeOnlyContext = new Context.ContextForErrorReporting(context);
+        String cacheKey = CarpetSettings.scriptsOptimization ? AstCache.keyFor(this, expression, allowComments, allowNewlineSubstitutions) : null;
+        if (cacheKey != null)
+        {
+            ExpressionNode cached = AstCache.load(this, cacheKey);
+            if (cached != null)
+            {
+                if (CarpetSettings.scriptsDebugging)
+                    CarpetScriptServer.LOG.info("Loaded cached code for "+getModuleName()+": " + treeSize(cached) + " nodes, " + treeDepth(cached) + " deep");
+                resolveFrames(cached, null);
+                return extractOp(optimizeOnlyContext, cached, Context.Type.NONE, ExpressionCompiler.isEnabled(context, cached));
+            }
+        }
         List<Tokenizer.Token> rpn = shuntingYard(context);
         validate(context, rpn);
         ExpressionNode root = RPNToParseTree(rpn, context);
         if (!CarpetSettings.scriptsOptimization)
+        {
+            resolveFrames(root, null);
             return root.op;
+        }
 
-        Context optimizeOnlyContext = new Context.ContextForErrorReporting(context);
         if (CarpetSettings.scriptsDebugging)
             CarpetScriptServer.LOG.info("Input code size for "+getModuleName()+": " + treeSize(root) + " nodes, " + treeDepth(root) + " deep");
 
@@ -1136,7 +1244,178 @@ public class Expression
                     CarpetScriptServer.LOG.info("Optimized from " + tree_size + " nodes, " + tree_depth + " code depth to " + treeSize(root) + " nodes, " + treeDepth(root) + " code depth");
             }
         }
-        return extractOp(optimizeOnlyContext, root, Context.Type.NONE);
+        if (cacheKey != null) AstCache.store(this, cacheKey, root);
+        resolveFrames(root, null);
+        return extractOp(optimizeOnlyContext, root, Context.Type.NONE, ExpressionCompiler.isEnabled(context, root));
+    }
+
+    /**
+     * Assigns slots to local variables of each function definition body. Signatures are evaluated in the
+     * defining scope, so their variables belong to the outer layout, same as nodes outside of any function.
+     */
+    private void resolveFrames(ExpressionNode node, FrameLayout current)
+    {
+        if (node.op instanceof VariableAccess)
+        {
+            VariableAccess access = (VariableAccess) node.op;
+            if (current != null && !access.name.startsWith("global_"))
+            {
+                access.layout = current;
+                access.slot = current.register(access.name);
+            }
+            return;
+        }
+        if (node.token.type == Tokenizer.Token.TokenType.OPERATOR && node.token.surface.equals("->") && node.args.size() == 2)
+        {
+            FrameLayout layout = layoutForSignature(node.args.get(0));
+            if (layout != null)
+            {
+                resolveFrames(node.args.get(0), current);
+                resolveFrames(node.args.get(1), layout);
+                frameLayouts.put(node.token, layout);
+                Set<String> arguments = argumentsOfSignature(node.args.get(0));
+                Set<String> calls = new HashSet<>();
+                if (arguments != null && isPureCode(node.args.get(1), arguments, calls))
+                    pureDefinitions.put(node.token, calls);
+                ExpressionNode name = node.args.get(0).args.get(0);
+                if (arguments != null && name.op instanceof FunctionCallSite)
+                    markTailCalls(node.args.get(1), ((FunctionCallSite) name.op).get().getString(), node.token);
+                return;
+            }
+        }
+        for (ExpressionNode arg : node.args) resolveFrames(arg, current);
+    }
+
+    private FrameLayout layoutForSignature(ExpressionNode signature)
+    {
+        if (signature.token.type != Tokenizer.Token.TokenType.FUNCTION || !signature.token.surface.equals("call") || signature.args.isEmpty())
+            return null;
+        FrameLayout layout = new FrameLayout();
+        List<String> annotated = new ArrayList<>();
+        for (ExpressionNode param : signature.args.subList(1, signature.args.size()))
+        {
+            if (param.op instanceof VariableAccess)
+            {
+                layout.register(((VariableAccess) param.op).name);
+            }
+            else if ((param.token.surface.equals("outer") || param.token.surface.equals("...u"))
+                    && param.args.size() == 1 && param.args.get(0).op instanceof VariableAccess)
+            {
+                annotated.add(((VariableAccess) param.args.get(0).op).name);
+            }
+            else
+            {
+                return null;
+            }
+        }
+        // varargs and outer variables after positional arguments
+        annotated.forEach(layout::register);
+        layout.register("_");
+        layout.register("_i");
+        layout.register("_a");
+        return layout;
+    }
+
+    /**
+     * @return names of positional and variable arguments, or null if the function uses outer variables
+     */
+    private Set<String> argumentsOfSignature(ExpressionNode signature)
+    {
+        Set<String> arguments = new HashSet<>();
+        for (ExpressionNode param : signature.args.subList(1, signature.args.size()))
+        {
+            if (param.op instanceof VariableAccess)
+                arguments.add(((VariableAccess) param.op).name);
+            else if (param.token.surface.equals("...u"))
+                arguments.add(((VariableAccess) param.args.get(0).op).name);
+            else
+                return null;
+        }
+        return arguments;
+    }
+
+    /**
+     * Finds calls of the function by its name that are the last thing its body does, so they can loop
+     * instead of nesting a new call, see {@link carpet.script.exception.TailCallStatement}
+     */
+    private void markTailCalls(ExpressionNode node, String name, Tokenizer.Token definition)
+    {
+        Tokenizer.Token token = node.token;
+        if (token.type == Tokenizer.Token.TokenType.OPERATOR && token.surface.equals(";") && node.args.size() == 2)
+        {
+            markTailCalls(node.args.get(1), name, definition);
+        }
+        else if (token.type == Tokenizer.Token.TokenType.FUNCTION && !node.args.isEmpty())
+        {
+            switch (token.surface)
+            {
+                case "call":
+                    ExpressionNode callee = node.args.get(0);
+                    if (callee.op instanceof FunctionCallSite && ((FunctionCallSite) callee.op).get().getString().equals(name))
+                        ((FunctionCallSite) callee.op).markTailCallOf(definition);
+                    break;
+                case "then":
+                case "return":
+                    markTailCalls(node.args.get(node.args.size() - 1), name, definition);
+                    break;
+                case "if":
+                    for (int i = 1; i < node.args.size(); i += 2) markTailCalls(node.args.get(i), name, definition);
+                    if (node.args.size() % 2 == 1 && node.args.size() > 1) markTailCalls(node.args.get(node.args.size() - 1), name, definition);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Operators and functions which results depend only on their arguments, as long as the arguments are plain values
+     * and not entities or blocks reading the world, which memoized functions check as they are called.
+     * Built-ins marked as pure only promise the optimizer that they can be evaluated with constant arguments,
+     * and may still read the world or change their arguments, so they are not enough.
+     */
+    private static final Set<String> PURE_OPERATORS = Set.of(
+            "+", "-", "*", "/", "%", "^", "&&", "||", "~", ":", ";",
+            "<", ">", "<=", ">=", "==", "!=", "-u", "+u", "!u"
+    );
+    private static final Set<String> PURE_FUNCTIONS = Set.of(
+            "if", "then", "return", "not", "and", "or", "bool", "number", "str", "type", "length", "copy", "hash_code",
+            "sum", "difference", "product", "quotient", "equal", "unique", "increasing", "decreasing", "nondecreasing", "nonincreasing",
+            "abs", "round", "floor", "ceil", "sqrt", "max", "min", "relu", "fact", "mandelbrot", "ln", "ln1p", "log", "log10", "log1p",
+            "sin", "cos", "tan", "asin", "acos", "atan", "atan2", "sinh", "cosh", "tanh", "sec", "csc", "sech", "csch",
+            "cot", "acot", "coth", "asinh", "acosh", "atanh", "rad", "deg",
+            "bitwise_and", "bitwise_xor", "bitwise_or", "bitwise_not", "bitwise_popcount", "bitwise_shift_left", "bitwise_shift_right",
+            "bitwise_roll_left", "bitwise_roll_right", "double_to_long_bits", "long_to_double_bits",
+            "lower", "upper", "title", "replace", "replace_first", "split", "join", "slice",
+            "l", "m", "get", "has", "keys", "values", "pairs", "encode_b64", "decode_b64", "encode_json", "decode_json"
+    );
+
+    /**
+     * Checks if the code only reads given variables and uses built-ins from {@link #PURE_OPERATORS} and
+     * {@link #PURE_FUNCTIONS}. Calls of functions by their name are allowed as well, and are collected to be checked
+     * once they are defined.
+     */
+    private boolean isPureCode(ExpressionNode node, Set<String> variables, Set<String> calls)
+    {
+        if (node.op instanceof LazyValue.Constant) return true;
+        switch (node.token.type)
+        {
+            case VARIABLE:
+                return variables.contains(node.token.surface);
+            case OPERATOR:
+            case UNARY_OPERATOR:
+                if (!PURE_OPERATORS.contains(node.token.surface)) return false;
+                break;
+            case FUNCTION:
+                if (node.token.surface.equals("call") && !node.args.isEmpty() && node.args.get(0).op instanceof FunctionCallSite)
+                    calls.add(((FunctionCallSite) node.args.get(0).op).get().getString());
+                else if (!PURE_FUNCTIONS.contains(node.token.surface))
+                    return false;
+                break;
+            default:
+                return false;
+        }
+        for (ExpressionNode arg : node.args)
+            if (!isPureCode(arg, variables, calls)) return false;
+        return true;
     }
 
     private int treeSize(ExpressionNode node)
@@ -1308,8 +1587,36 @@ public class Expression
         return true;
     }
 
-    private LazyValue extractOp(Context ctx, ExpressionNode node, Context.Type expectedType)
+    /**
+     * @param compile whether compilable parts of the code are set up to run as compiled code, see {@link ExpressionCompiler}
+     */
+    private LazyValue extractOp(Context ctx, ExpressionNode node, Context.Type expectedType, boolean compile)
+    {
+        return extractOp(ctx, node, expectedType, compile, null);
+    }
+
+    /**
+     * @param region collects interpreted ops of the compiled region the node is in, either compiled with it
+     * or called from it, null if the parent node is not compiled
+     */
+    private LazyValue extractOp(Context ctx, ExpressionNode node, Context.Type expectedType, boolean compile, Map<ExpressionNode, LazyValue> region)
+    {
+        boolean compiled = compile && ExpressionCompiler.compiles(node);
+        // each region gets its own ops, so they can go once it is compiled
+        Map<ExpressionNode, LazyValue> nodeRegion = !compiled ? null : region == null ? new IdentityHashMap<>() : region;
+        LazyValue op = extractNodeOp(ctx, node, expectedType, compile, nodeRegion);
+        if (region != null) region.put(node, op);
+        if (compiled && region == null)
+            return ExpressionCompiler.region(this, node, op, nodeRegion);
+        return op;
+    }
+
+    private LazyValue extractNodeOp(Context ctx, ExpressionNode node, Context.Type expectedType, boolean compile, Map<ExpressionNode, LazyValue> region)
     {
+        if (node.op instanceof FunctionCallSite)
+        {
+            return node.op;
+        }
         if (node.op instanceof LazyValue.Constant)
         {
             // constants are immutable
@@ -1331,22 +1638,22 @@ public class Expression
             case UNARY_OPERATOR: {
                 ILazyOperator op = operators.get(token.surface);
                 Context.Type requestedType = op.staticType(expectedType);
-                LazyValue arg = extractOp(ctx, node.args.get(0), requestedType);
+                LazyValue arg = extractOp(ctx, node.args.get(0), requestedType, compile, region);
                 return (c, t) -> op.lazyEval(c, t, this, token, arg, null).evalValue(c, t);
             }
             case OPERATOR: {
                 ILazyOperator op = operators.get(token.surface);
                 Context.Type requestedType = op.staticType(expectedType);
-                LazyValue arg = extractOp(ctx, node.args.get(0), requestedType);
-                LazyValue arh = extractOp(ctx, node.args.get(1), requestedType);
+                LazyValue arg = extractOp(ctx, node.args.get(0), requestedType, compile, region);
+                LazyValue arh = extractOp(ctx, node.args.get(1), requestedType, compile, region);
                 return (c, t) -> op.lazyEval(c, t, this, token, arg, arh).evalValue(c, t);
             }
             case VARIABLE:
-                return (c, t) -> getOrSetAnyVariable(c, token.surface).evalValue(c, t);
+                return node.op;
             case FUNCTION: {
                 ILazyFunction f = functions.get(token.surface);
                 Context.Type requestedType = f.staticType(expectedType);
-                List<LazyValue> params = node.args.stream().map(n -> extractOp(ctx, n, requestedType)).collect(Collectors.toList());
+                List<LazyValue> params = node.args.stream().map(n -> extractOp(ctx, n, requestedType, compile, region)).collect(Collectors.toList());
                 return (c, t) -> f.lazyEval(c, t, this, token, params).evalValue(c, t);
             }
             case CONSTANT:
@@ -0,0 +1,505 @@
+package carpet.script;
+
+import carpet.CarpetSettings;
+import carpet.script.Expression.ExpressionNode;
+import carpet.script.value.BooleanValue;
+import carpet.script.value.FunctionUnpackedArgumentsValue;
+import carpet.script.value.MapValue;
+import carpet.script.value.NumericValue;
+import carpet.script.value.StringValue;
+import carpet.script.value.Value;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles regions of an optimized expression tree into hidden JVM classes, so that each node gets its own
+ * call site the JIT can inline, instead of sharing the megamorphic call sites of the interpreter lambdas.
+ * Only a handful of operators and control flow functions are compiled - everything else stays interpreted
+ * and is called from the compiled code as a leaf. Compiled code follows the interpreter step by step,
+ * including how and where errors are reported.
+ */
+class ExpressionCompiler
+{
+    private static final Set<String> OPERATORS = Set.of("+", "-", "*", "/", "<", ">", "<=", ">=", "==", "!=", ";", "&&", "||");
+    private static final Set<String> UNARY_OPERATORS = Set.of("-u", "!u");
+    private static final Set<String> FUNCTIONS = Set.of("sum", "difference", "product", "quotient", "then", "if");
+    /** smaller regions are not worth a class */
+    private static final int MIN_REGION_SIZE = 2;
+
+    private static final String VALUE = "carpet/script/value/Value";
+    private static final String LAZY_VALUE = "carpet/script/LazyValue";
+    private static final String CONTEXT = "carpet/script/Context";
+    private static final String TYPE = "carpet/script/Context$Type";
+    private static final String TOKEN = "carpet/script/Tokenizer$Token";
+    private static final String EXPRESSION = "carpet/script/Expression";
+    private static final String COMPILER = "carpet/script/ExpressionCompiler";
+    private static final String BINARY = "(L"+VALUE+";L"+VALUE+";)L"+VALUE+";";
+    private static final String UNARY = "(L"+VALUE+";)L"+VALUE+";";
+
+    static boolean compiles(ExpressionNode node)
+    {
+        if (node.op instanceof LazyValue.ContextFreeLazyValue) return false;
+        String surface = node.token.surface;
+        switch (node.token.type)
+        {
+            case OPERATOR:
+                return node.args.size() == 2 && OPERATORS.contains(surface);
+            case UNARY_OPERATOR:
+                return node.args.size() == 1 && UNARY_OPERATORS.contains(surface);
+            case FUNCTION:
+                return FUNCTIONS.contains(surface) && node.args.size() >= (surface.equals("if") ? 2 : 1);
+            default:
+                return false;
+        }
+    }
+
+    private static int regionSize(ExpressionNode node)
+    {
+        if (!compiles(node)) return 0;
+        int size = 1;
+        for (ExpressionNode arg : node.args) size += regionSize(arg);
+        return size;
+    }
+
+    /**
+     * @param extracted interpreter ops of the nodes in the region and its leaves
+     * @return op for the region, that runs compiled code
+     */
+    static LazyValue region(Expression expression, ExpressionNode root, LazyValue interpreted, Map<ExpressionNode, LazyValue> extracted)
+    {
+        if (regionSize(root) < MIN_REGION_SIZE) return interpreted;
+        return new Region(expression, root, interpreted, extracted);
+    }
+
+    /**
+     * @return whether code parsed in the context gets compiled
+     */
+    static boolean isEnabled(Context c, ExpressionNode root)
+    {
+        return CarpetSettings.scriptsCompilation || (c.host != null && c.host.compileCode) || requestedByConfig(root);
+    }
+
+    /**
+     * Apps read their config only once their code runs, which is too late for the code to be compiled,
+     * so a constant config defined in the code is looked up in the tree.
+     * @return whether the code defines a constant app config with 'compile' set
+     */
+    private static boolean requestedByConfig(ExpressionNode node)
+    {
+        String surface = node.token.surface;
+        if (node.token.type == Tokenizer.Token.TokenType.OPERATOR && surface.equals(";"))
+            return node.args.stream().anyMatch(ExpressionCompiler::requestedByConfig);
+        if (node.token.type != Tokenizer.Token.TokenType.OPERATOR || !surface.equals("->") || node.args.size() != 2)
+            return false;
+        ExpressionNode signature = node.args.get(0);
+        if (!signature.token.surface.equals("call") || signature.args.size() != 1 || !signature.args.get(0).token.surface.equals("__config"))
+            return false;
+        ExpressionNode body = node.args.get(1);
+        if (!(body.op instanceof LazyValue.Constant)) return false;
+        Value config = ((LazyValue.Constant) body.op).get();
+        if (!(config instanceof MapValue)) return false;
+        Value compile = ((MapValue) config).getMap().get(new StringValue("compile"));
+        return compile != null && compile.getBoolean();
+    }
+
+    private static class Region implements LazyValue
+    {
+        private final LazyValue interpreted;
+        private Expression expression;
+        private ExpressionNode root;
+        private Map<ExpressionNode, LazyValue> extracted;
+        // the interpreted op once the code fails to compile
+        private volatile LazyValue compiled = null;
+
+        private Region(Expression expression, ExpressionNode root, LazyValue interpreted, Map<ExpressionNode, LazyValue> extracted)
+        {
+            this.expression = expression;
+            this.root = root;
+            this.interpreted = interpreted;
+            this.extracted = extracted;
+        }
+
+        @Override
+        public Value evalValue(Context c, Context.Type type)
+        {
+            LazyValue code = compiled;
+            if (code == null) code = compile();
+            return code.evalValue(c, type);
+        }
+
+        private synchronized LazyValue compile()
+        {
+            if (compiled != null) return compiled;
+            try
+            {
+                compiled = new Generator(expression, extracted).define(root);
+            }
+            catch (Throwable exc)
+            {
+                compiled = interpreted;
+                CarpetScriptServer.LOG.error("Failed to compile code at line "+(root.token.lineno+1)+" of "+expression.getModuleName()+", running it in the interpreter", exc);
+            }
+            // tree is no longer needed
+            expression = null;
+            root = null;
+            extracted = null;
+            return compiled;
+        }
+    }
+
+    private static class Generator
+    {
+        private final Map<ExpressionNode, LazyValue> extracted;
+        private final List<Object> fields = new ArrayList<>();
+        private final List<String> fieldTypes = new ArrayList<>();
+        private final int expressionField;
+        private int locals = 3; // this, context, type
+        private MethodVisitor mv;
+
+        private Generator(Expression expression, Map<ExpressionNode, LazyValue> extracted)
+        {
+            this.extracted = extracted;
+            this.expressionField = field(expression, EXPRESSION);
+        }
+
+        private int field(Object value, String type)
+        {
+            fields.add(value);
+            fieldTypes.add(type);
+            return fields.size()-1;
+        }
+
+        private LazyValue define(ExpressionNode root) throws Throwable
+        {
+            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS)
+            {
+                @Override
+                protected ClassLoader getClassLoader()
+                {
+                    return ExpressionCompiler.class.getClassLoader();
+                }
+            };
+            String className = "carpet/script/CompiledExpression";
+            cw.visit(Opcodes.V16, Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null, "java/lang/Object", new String[]{LAZY_VALUE});
+
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "evalValue", "(L"+CONTEXT+";L"+TYPE+";)L"+VALUE+";", null, null);
+            mv.visitCode();
+            emit(root, null);
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            // fields are only known once the code is generated
+            MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", null, null);
+            init.visitCode();
+            init.visitVarInsn(Opcodes.ALOAD, 0);
+            init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            for (int i = 0; i < fields.size(); i++)
+            {
+                cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "f"+i, "L"+fieldTypes.get(i)+";", null, null).visitEnd();
+                init.visitVarInsn(Opcodes.ALOAD, 0);
+                init.visitVarInsn(Opcodes.ALOAD, 1);
+                init.visitLdcInsn(i);
+                init.visitInsn(Opcodes.AALOAD);
+                init.visitTypeInsn(Opcodes.CHECKCAST, fieldTypes.get(i));
+                init.visitFieldInsn(Opcodes.PUTFIELD, className, "f"+i, "L"+fieldTypes.get(i)+";");
+            }
+            init.visitInsn(Opcodes.RETURN);
+            init.visitMaxs(0, 0);
+            init.visitEnd();
+            cw.visitEnd();
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cw.toByteArray(), true);
+            MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Object[].class));
+            return (LazyValue) constructor.invoke(fields.toArray());
+        }
+
+        private void loadField(int index)
+        {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitFieldInsn(Opcodes.GETFIELD, "carpet/script/CompiledExpression", "f"+index, "L"+fieldTypes.get(index)+";");
+        }
+
+        /**
+         * @param type context type to evaluate with, or null to pass the type the compiled code is called with
+         */
+        private void loadType(Context.Type type)
+        {
+            if (type == null)
+                mv.visitVarInsn(Opcodes.ALOAD, 2);
+            else
+                mv.visitFieldInsn(Opcodes.GETSTATIC, TYPE, type.name(), "L"+TYPE+";");
+        }
+
+        private void loadValue(Value value)
+        {
+            loadField(field(value, VALUE));
+        }
+
+        private void helper(String name, String descriptor)
+        {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, COMPILER, name, descriptor, false);
+        }
+
+        private void checkInterrupts()
+        {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "carpet/script/Fluff$ILazyFunction", "checkInterrupts", "()V", true);
+        }
+
+        /**
+         * Emits code leaving the value of the node on the stack
+         */
+        private void emit(ExpressionNode node, Context.Type type)
+        {
+            if (!compiles(node))
+            {
+                if (node.op instanceof LazyValue.Constant && node.token.type.isConstant())
+                {
+                    loadValue(((LazyValue.Constant) node.op).get());
+                    return;
+                }
+                LazyValue leaf = extracted.get(node);
+                if (leaf == null) throw new IllegalStateException("No interpreted code for "+node.token.surface);
+                loadField(field(leaf, LAZY_VALUE));
+                mv.visitVarInsn(Opcodes.ALOAD, 1);
+                loadType(type);
+                mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, LAZY_VALUE, "evalValue", "(L"+CONTEXT+";L"+TYPE+";)L"+VALUE+";", true);
+                return;
+            }
+            List<ExpressionNode> args = node.args;
+            switch (node.token.surface)
+            {
+                case "+": binary(node, "add"); break;
+                case "-": binary(node, "subtract"); break;
+                case "*": binary(node, "multiply"); break;
+                case "/": binary(node, "divide"); break;
+                case "<": comparison(node, "less"); break;
+                case ">": comparison(node, "greater"); break;
+                case "<=": comparison(node, "lessOrEqual"); break;
+                case ">=": comparison(node, "greaterOrEqual"); break;
+                case "==": comparison(node, "equal"); break;
+                case "!=": comparison(node, "notEqual"); break;
+                case "-u":
+                    guarded(node, false, () -> {
+                        emit(args.get(0), Context.Type.NONE);
+                        helper("negate", UNARY);
+                    });
+                    break;
+                case "!u":
+                    guarded(node, false, () -> {
+                        emit(args.get(0), Context.Type.BOOLEAN);
+                        helper("not", UNARY);
+                    });
+                    break;
+                case ";":
+                case "then":
+                    guarded(node, true, () -> {
+                        for (int i = 0; i < args.size()-1; i++)
+                        {
+                            emit(args.get(i), Context.Type.VOID);
+                            mv.visitInsn(Opcodes.POP);
+                        }
+                        emit(args.get(args.size()-1), type);
+                    });
+                    break;
+                case "if":
+                    guarded(node, true, () -> ifStatement(args, type));
+                    break;
+                case "&&": shortCircuit(node, type, Opcodes.IFEQ); break;
+                case "||": shortCircuit(node, type, Opcodes.IFNE); break;
+                case "sum": fold(node, "sumStep"); break;
+                case "difference": fold(node, "differenceStep"); break;
+                case "product": fold(node, "productStep"); break;
+                case "quotient": fold(node, "quotientStep"); break;
+                default:
+                    throw new IllegalStateException("Unexpected compiled node "+node.token.surface);
+            }
+        }
+
+        /**
+         * eager operators evaluate both sides without a context type, whatever type they are evaluated with
+         */
+        private void binary(ExpressionNode node, String method)
+        {
+            guarded(node, false, () -> {
+                emit(node.args.get(0), Context.Type.NONE);
+                emit(node.args.get(1), Context.Type.NONE);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VALUE, method, UNARY, false);
+            });
+        }
+
+        private void comparison(ExpressionNode node, String helper)
+        {
+            guarded(node, false, () -> {
+                emit(node.args.get(0), Context.Type.NONE);
+                emit(node.args.get(1), Context.Type.NONE);
+                helper(helper, BINARY);
+            });
+        }
+
+        private void ifStatement(List<ExpressionNode> args, Context.Type type)
+        {
+            Label end = new Label();
+            for (int i = 0; i < args.size()-1; i += 2)
+            {
+                Label next = new Label();
+                emit(args.get(i), Context.Type.BOOLEAN);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VALUE, "getBoolean", "()Z", false);
+                mv.visitJumpInsn(Opcodes.IFEQ, next);
+                emit(args.get(i+1), type);
+                mv.visitJumpInsn(Opcodes.GOTO, end);
+                mv.visitLabel(next);
+            }
+            if (args.size() % 2 == 1)
+                emit(args.get(args.size()-1), type);
+            else
+                loadValue(Value.NULL);
+            mv.visitLabel(end);
+        }
+
+        /**
+         * lazy boolean operators evaluate their right hand side after they are done with their own code
+         */
+        private void shortCircuit(ExpressionNode node, Context.Type type, int returnLeftIf)
+        {
+            int left = locals++;
+            guarded(node, true, () -> emit(node.args.get(0), Context.Type.BOOLEAN));
+            mv.visitVarInsn(Opcodes.ASTORE, left);
+            Label returnLeft = new Label();
+            Label end = new Label();
+            mv.visitVarInsn(Opcodes.ALOAD, left);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VALUE, "getBoolean", "()Z", false);
+            mv.visitJumpInsn(returnLeftIf, returnLeft);
+            emit(node.args.get(1), type);
+            mv.visitJumpInsn(Opcodes.GOTO, end);
+            mv.visitLabel(returnLeft);
+            mv.visitVarInsn(Opcodes.ALOAD, left);
+            mv.visitLabel(end);
+        }
+
+        /**
+         * eager functions evaluate all of their arguments before folding them
+         */
+        private void fold(ExpressionNode node, String step)
+        {
+            guarded(node, true, () -> {
+                int first = locals;
+                locals += node.args.size();
+                for (int i = 0; i < node.args.size(); i++)
+                {
+                    emit(node.args.get(i), Context.Type.NONE);
+                    mv.visitVarInsn(Opcodes.ASTORE, first+i);
+                }
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                for (int i = 0; i < node.args.size(); i++)
+                {
+                    mv.visitVarInsn(Opcodes.ALOAD, first+i);
+                    helper(step, BINARY);
+                }
+                helper("orNull", UNARY);
+            });
+        }
+
+        /**
+         * Wraps the code the same way built-in lazy functions are, turning errors into ones pointing at the node
+         */
+        private void guarded(ExpressionNode node, boolean interruptible, Runnable body)
+        {
+            if (interruptible) checkInterrupts();
+            int result = locals++;
+            int exception = locals++;
+            int token = field(node.token, TOKEN);
+            Label start = new Label();
+            Label end = new Label();
+            Label handler = new Label();
+            Label done = new Label();
+            mv.visitTryCatchBlock(start, end, handler, "java/lang/RuntimeException");
+            mv.visitLabel(start);
+            body.run();
+            mv.visitVarInsn(Opcodes.ASTORE, result);
+            mv.visitLabel(end);
+            mv.visitJumpInsn(Opcodes.GOTO, done);
+            mv.visitLabel(handler);
+            mv.visitVarInsn(Opcodes.ASTORE, exception);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitVarInsn(Opcodes.ALOAD, exception);
+            loadField(expressionField);
+            loadField(token);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, EXPRESSION, "handleCodeException",
+                    "(L"+CONTEXT+";Ljava/lang/RuntimeException;L"+EXPRESSION+";L"+TOKEN+";)Ljava/lang/RuntimeException;", false);
+            mv.visitInsn(Opcodes.ATHROW);
+            mv.visitLabel(done);
+            mv.visitVarInsn(Opcodes.ALOAD, result);
+        }
+    }
+
+    // helpers called from the compiled code, mirroring built-in operators
+
+    static Value less(Value v1, Value v2) { return BooleanValue.of(v1.compareTo(v2) < 0); }
+
+    static Value greater(Value v1, Value v2) { return BooleanValue.of(v1.compareTo(v2) > 0); }
+
+    static Value lessOrEqual(Value v1, Value v2) { return BooleanValue.of(v1.compareTo(v2) <= 0); }
+
+    static Value greaterOrEqual(Value v1, Value v2) { return BooleanValue.of(v1.compareTo(v2) >= 0); }
+
+    static Value equal(Value v1, Value v2) { return v1.equals(v2) ? Value.TRUE : Value.FALSE; }
+
+    static Value notEqual(Value v1, Value v2) { return v1.equals(v2) ? Value.FALSE : Value.TRUE; }
+
+    static Value negate(Value v) { return NumericValue.asNumber(v).opposite(); }
+
+    static Value not(Value v) { return v.getBoolean() ? Value.FALSE : Value.TRUE; }
+
+    static Value orNull(Value accumulator) { return accumulator == null ? Value.NULL : accumulator; }
+
+    static Value sumStep(Value accumulator, Value v)
+    {
+        if (v instanceof FunctionUnpackedArgumentsValue)
+        {
+            for (Value item : ((FunctionUnpackedArgumentsValue) v).getItems()) accumulator = sumStep(accumulator, item);
+            return accumulator;
+        }
+        return accumulator == null ? v : accumulator.add(v);
+    }
+
+    static Value differenceStep(Value accumulator, Value v)
+    {
+        if (v instanceof FunctionUnpackedArgumentsValue)
+        {
+            for (Value item : ((FunctionUnpackedArgumentsValue) v).getItems()) accumulator = differenceStep(accumulator, item);
+            return accumulator;
+        }
+        return accumulator == null ? v : accumulator.subtract(v);
+    }
+
+    static Value productStep(Value accumulator, Value v)
+    {
+        if (v instanceof FunctionUnpackedArgumentsValue)
+        {
+            for (Value item : ((FunctionUnpackedArgumentsValue) v).getItems()) accumulator = productStep(accumulator, item);
+            return accumulator;
+        }
+        return accumulator == null ? v : accumulator.multiply(v);
+    }
+
+    static Value quotientStep(Value accumulator, Value v)
+    {
+        if (v instanceof FunctionUnpackedArgumentsValue)
+        {
+            for (Value item : ((FunctionUnpackedArgumentsValue) v).getItems()) accumulator = quotientStep(accumulator, item);
+            return accumulator;
+        }
+        return accumulator == null ? v : accumulator.divide(v);
+    }
+}
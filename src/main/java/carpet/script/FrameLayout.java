@@ -0,0 +1,55 @@
+package carpet.script;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Numbered slots for local variables of a user defined function, so calling it only needs
+ * a fresh array of lazy values instead of a map of them keyed by their names.
+ * Layouts are filled in when the code is parsed, and are read only after that.
+ */
+public class FrameLayout
+{
+    private final Object2IntOpenHashMap<String> slots = new Object2IntOpenHashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    FrameLayout()
+    {
+        slots.defaultReturnValue(-1);
+    }
+
+    int register(String name)
+    {
+        int slot = slots.getInt(name);
+        if (slot >= 0) return slot;
+        slot = names.size();
+        names.add(name);
+        slots.put(name, slot);
+        return slot;
+    }
+
+    /**
+     * @return slot of the variable, or -1 if the function never refers to it by its name
+     */
+    public int slotOf(String name)
+    {
+        return slots.getInt(name);
+    }
+
+    public String nameOf(int slot)
+    {
+        return names.get(slot);
+    }
+
+    public int size()
+    {
+        return names.size();
+    }
+
+    public LazyValue[] newFrame()
+    {
+        return new LazyValue[names.size()];
+    }
+}
@@ -0,0 +1,62 @@
+package carpet.script;
+
+import carpet.script.bundled.Module;
+import carpet.script.value.FunctionValue;
+import carpet.script.value.Value;
+
+/**
+ * Name of the function called by name in the code, remembering which function it resolved to the last time.
+ * Lookups are repeated only when the function definitions of the host change, or the code runs in a different host.
+ * Calls that are the last thing a function does also know the definition they are in, so calls of the function
+ * itself from there can reuse the frame of the caller.
+ */
+public class FunctionCallSite extends LazyValue.Constant
+{
+    private static class Target
+    {
+        final ScriptHost host;
+        final int version;
+        final FunctionValue function;
+
+        Target(ScriptHost host, int version, FunctionValue function)
+        {
+            this.host = host;
+            this.version = version;
+            this.function = function;
+        }
+    }
+
+    private final String name;
+    private volatile Target target = null;
+    private Tokenizer.Token tailOf = null;
+
+    public FunctionCallSite(Value name)
+    {
+        super(name);
+        this.name = name.getString();
+    }
+
+    public FunctionValue resolve(Context c, Module module)
+    {
+        ScriptHost host = c.host;
+        int version = host.getFunctionVersion();
+        Target cached = target;
+        if (cached != null && cached.host == host && cached.version == version) return cached.function;
+        FunctionValue function = host.getAssertFunction(module, name);
+        target = new Target(host, version, function);
+        return function;
+    }
+
+    void markTailCallOf(Tokenizer.Token definition)
+    {
+        tailOf = definition;
+    }
+
+    /**
+     * @return whether calling the function from here is a call of the function the call is the last statement of
+     */
+    public boolean isTailCallOf(FunctionValue function)
+    {
+        return tailOf != null && function.getToken() == tailOf;
+    }
+}
@@ -6,8 +6,10 @@ import carpet.script.exception.IntegrityException;
 import carpet.script.exception.InternalExpressionException;
 import carpet.script.language.Arithmetic;
 import carpet.script.value.FunctionValue;
+import carpet.script.value.GeneratorValue;
 import carpet.script.value.Value;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,44 +19,78 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 public abstract class ScriptHost
 {
     public static Map<Value, Value> systemGlobals = new ConcurrentHashMap<>();
-    private static final Map<Long, Random> randomizers = new Long2ObjectOpenHashMap<>();
+    private static final int RANDOMIZER_STRIPES = 16;
+    private static final int RANDOMIZERS_PER_STRIPE = 4096;
+    // seeded randomizers in stripes by seed, each keeping its most recently used ones, so tasks using different seeds don't wait for each other
+    @SuppressWarnings("unchecked")
+    private static final Long2ObjectLinkedOpenHashMap<Random>[] randomizers = new Long2ObjectLinkedOpenHashMap[RANDOMIZER_STRIPES];
+    static
+    {
+        for (int i = 0; i < RANDOMIZER_STRIPES; i++) randomizers[i] = new Long2ObjectLinkedOpenHashMap<>();
+    }
 
     public static Thread mainThread = null;
-    private final Map<Value, ThreadPoolExecutor> executorServices = new HashMap<>();
+    private final Map<Value, TaskPool> executorServices = new HashMap<>();
     private final Map<Value, Object> locks = new ConcurrentHashMap<>();
+    private final Set<GeneratorValue.Routine> generators = ConcurrentHashMap.newKeySet();
+    // work apps hand over to the main thread, see runOnMainThread
+    private static final Queue<Runnable> mainThreadWork = new ConcurrentLinkedQueue<>();
     protected boolean inTermination = false;
 
     private final Set<String> deprecations = new HashSet<>();
 
+    private static Long2ObjectLinkedOpenHashMap<Random> randomizerStripe(long aLong)
+    {
+        return randomizers[(int) (HashCommon.mix(aLong) & (RANDOMIZER_STRIPES - 1))];
+    }
+
     public Random getRandom(long aLong)
     {
-        if (randomizers.size() > 65536)
-            randomizers.clear();
-        return randomizers.computeIfAbsent(aLong, Random::new);
+        Long2ObjectLinkedOpenHashMap<Random> stripe = randomizerStripe(aLong);
+        synchronized (stripe)
+        {
+            Random random = stripe.getAndMoveToLast(aLong);
+            if (random == null)
+            {
+                if (stripe.size() >= RANDOMIZERS_PER_STRIPE) stripe.removeFirst();
+                random = new Random(aLong);
+                stripe.putAndMoveToLast(aLong, random);
+            }
+            return random;
+        }
     }
 
     public boolean resetRandom(long aLong) {
-        return randomizers.remove(aLong) != null;
+        Long2ObjectLinkedOpenHashMap<Random> stripe = randomizerStripe(aLong);
+        synchronized (stripe)
+        {
+            return stripe.remove(aLong) != null;
+        }
     }
 
     public static class ModuleData
     {
         Module parent;
         public Map<String, FunctionValue> globalFunctions = new Object2ObjectOpenHashMap<>();
-        public Map<String, LazyValue> globalVariables = new Object2ObjectOpenHashMap<>();
+        // tasks of the app read and set globals while the main thread runs
+        public Map<String, LazyValue> globalVariables = new ConcurrentHashMap<>();
         public Map<String, ModuleData> functionImports = new Object2ObjectOpenHashMap<>(); // imported functions string to module
         public Map<String, ModuleData> globalsImports = new Object2ObjectOpenHashMap<>(); // imported global variables string to module
         public Map<String, ModuleData> futureImports = new Object2ObjectOpenHashMap<>(); // imports not known before used
@@ -99,7 +135,19 @@ public abstract class ScriptHost
 
     protected ScriptHost parent;
     protected boolean perUser;
+    /** changes each time functions visible by their names may resolve differently, see {@link FunctionCallSite} */
+    private final AtomicInteger functionVersion = new AtomicInteger();
     public String user;
+    /** runs optimized code of the app as compiled classes, see {@link ExpressionCompiler} */
+    public boolean compileCode;
+    /** loop iterations and function calls the app may run on the main thread in a tick, 0 for no limit */
+    public long tickBudget;
+    // only counted by the main thread, and generators it waits for
+    private long budgetSteps = 0L;
+    private int budgetTick = 0;
+    /** limits of executors running tasks of the app, unless set for the executor in {@link #poolSettings} */
+    public TaskPool.Settings taskSettings;
+    public Map<Value, TaskPool.Settings> poolSettings;
 
     public String getName() {return main ==null?null: main.getName();}
 
@@ -118,6 +166,10 @@ public abstract class ScriptHost
         this.main = code;
         this.perUser = perUser;
         this.user = null;
+        this.compileCode = parent != null && parent.compileCode;
+        this.tickBudget = parent == null ? 0L : parent.tickBudget;
+        this.taskSettings = parent == null ? TaskPool.Settings.DEFAULT : parent.taskSettings;
+        this.poolSettings = parent == null ? new HashMap<>() : parent.poolSettings;
         ModuleData moduleData = new ModuleData(code);
         initializeModuleGlobals(moduleData);
         this.moduleData.put(code, moduleData);
@@ -156,6 +208,7 @@ public abstract class ScriptHost
         {
             throw new InternalExpressionException("Cannot import from module that is not imported");
         }
+        functionVersion.incrementAndGet();
         for (String identifier: identifiers)
         {
             if (sourceData.globalFunctions.containsKey(identifier))
@@ -191,6 +244,38 @@ public abstract class ScriptHost
 
     protected abstract void runModuleCode(Context c, Module module); // this should be shell out in the executor
 
+    public int getFunctionVersion() {return functionVersion.get();}
+
+    /**
+     * Counts a step of the app code on the main thread, called at loop iterations, block iterations and function calls.
+     * Once the app runs out of its budget for the current tick, generators the main thread waits for pause until a later
+     * tick. Other code can't be resumed, so it runs on, and only makes the app wait with work that can be put off,
+     * see {@link #isOutOfBudget()}.
+     */
+    public void checkBudget(Context c)
+    {
+        if (tickBudget == 0L) return;
+        if (Thread.currentThread() != mainThread && GeneratorValue.mainThreadExecutor() == null) return;
+        int tick = currentTick();
+        if (tick != budgetTick)
+        {
+            budgetTick = tick;
+            budgetSteps = 0L;
+        }
+        if (++budgetSteps > tickBudget) GeneratorValue.pauseOutOfBudget(this);
+    }
+
+    /**
+     * @return whether the app used up its budget for the current tick, so its scheduled calls and ticked generators
+     * wait for the next one
+     */
+    public boolean isOutOfBudget()
+    {
+        return tickBudget != 0L && budgetSteps >= tickBudget && budgetTick == currentTick();
+    }
+
+    protected int currentTick() {return 0;}
+
     public FunctionValue getFunction(String name) { return getFunction(main, name); }
     public FunctionValue getAssertFunction(Module module, String name)
     {
@@ -276,12 +361,14 @@ public abstract class ScriptHost
         ModuleData data = getModuleData(module);
         data.globalFunctions.entrySet().removeIf(e -> e.getKey().startsWith(prefix));
         data.functionImports.entrySet().removeIf(e -> e.getKey().startsWith(prefix));
+        functionVersion.incrementAndGet();
     }
     public void delFunction(Module module, String funName)
     {
         ModuleData data = getModuleData(module);
         data.globalFunctions.remove(funName);
         data.functionImports.remove(funName);
+        functionVersion.incrementAndGet();
     }
 
     public void delGlobalVariableWithPrefix(Module module, String prefix)
@@ -296,6 +383,7 @@ public abstract class ScriptHost
         ModuleData data = getModuleData(module);
         data.globalFunctions.remove(varName);
         data.functionImports.remove(varName);
+        functionVersion.incrementAndGet();
     }
 
     private ModuleData getModuleData(Module module)
@@ -313,6 +401,7 @@ public abstract class ScriptHost
     public void addUserDefinedFunction(Context ctx, Module module, String name, FunctionValue fun)
     {
         getModuleData(module).globalFunctions.put(name, fun);
+        functionVersion.incrementAndGet();
     }
 
     public void setGlobalVariable(Module module, String name, LazyValue lv)
@@ -370,33 +459,86 @@ public abstract class ScriptHost
         return locks.computeIfAbsent(name, (n) -> new Object());
     }
 
-    public ThreadPoolExecutor getExecutor(Value pool)
+    public synchronized TaskPool getExecutor(Value pool)
     {
         if (inTermination) return null;
-        return executorServices.computeIfAbsent(pool, (v) -> (ThreadPoolExecutor) Executors.newCachedThreadPool());
+        return executorServices.computeIfAbsent(pool, (v) -> new TaskPool(
+                "Scarpet task "+getName()+(v.isNull() ? "" : " "+v.getString()),
+                poolSettings.getOrDefault(v, taskSettings)
+        ));
     }
 
-    public int taskCount()
+    public synchronized Map<Value, Value> getExecutorStats()
     {
-        return executorServices.values().stream().map(ThreadPoolExecutor::getActiveCount).reduce(0, Integer::sum);
+        Map<Value, Value> stats = new HashMap<>();
+        executorServices.forEach((pool, executor) -> stats.put(pool, executor.getStats()));
+        return stats;
     }
-    public int taskCount(Value pool)
+
+    public synchronized int taskCount()
+    {
+        return executorServices.values().stream().map(TaskPool::activeCount).reduce(0, Integer::sum);
+    }
+    public synchronized int taskCount(Value pool)
     {
         if (executorServices.containsKey(pool))
         {
-            return executorServices.get(pool).getActiveCount();
+            return executorServices.get(pool).activeCount();
         }
         return 0;
     }
 
+    /**
+     * @return false if the app is shutting down, so it can't start any more generators
+     */
+    public boolean addGenerator(GeneratorValue.Routine generator)
+    {
+        if (inTermination) return false;
+        generators.add(generator);
+        return true;
+    }
+
+    public void removeGenerator(GeneratorValue.Routine generator)
+    {
+        generators.remove(generator);
+    }
+
+    /**
+     * Runs the action on the main thread, as a task of the server, or earlier, if the main thread waits for a generator,
+     * which may wait for the thread handing over the action
+     */
+    public static void runOnMainThread(Runnable action, Executor server)
+    {
+        mainThreadWork.add(action);
+        LockSupport.unpark(mainThread);
+        server.execute(ScriptHost::runMainThreadWork);
+    }
+
+    /**
+     * Runs work apps handed over to the main thread so far, called on the main thread
+     * @return whether there was any
+     */
+    public static boolean runMainThreadWork()
+    {
+        boolean any = false;
+        for (Runnable action = mainThreadWork.poll(); action != null; action = mainThreadWork.poll())
+        {
+            any = true;
+            action.run();
+        }
+        return any;
+    }
+
     public void onClose()
     {
         inTermination = true;
-        executorServices.values().forEach(ThreadPoolExecutor::shutdown);
+        generators.forEach(GeneratorValue.Routine::close);
+        generators.clear();
+        executorServices.values().forEach(p -> p.getExecutor().shutdown());
         for (ScriptHost uh : userHosts.values()) uh.onClose();
         if (taskCount() > 0)
         {
-            executorServices.values().forEach(e -> {
+            executorServices.values().stream().map(TaskPool::getExecutor).forEach(e -> {
                 ExecutorService stopper = Executors.newSingleThreadExecutor();
                 stopper.submit( () -> {
                     try {
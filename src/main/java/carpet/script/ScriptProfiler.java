@@ -0,0 +1,203 @@
+package carpet.script;
+
+import carpet.script.value.FunctionValue;
+import carpet.utils.Messenger;
+import net.minecraft.server.command.ServerCommandSource;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Measures time spent in user defined functions of a single app for a number of ticks, timing each call
+ * while a profile runs. Times are attributed both to functions, identified by their name and module,
+ * and to whole call stacks, where each call is also marked with the line it was made from, which are
+ * saved in the folded format flame graph tools read.
+ */
+public class ScriptProfiler
+{
+    private static final int TOP_ENTRIES = 10;
+
+    private static class Stats
+    {
+        long calls;
+        long total;
+        long self;
+
+        synchronized void add(long time, long selfTime, boolean recursive)
+        {
+            calls++;
+            // nested calls of a function are already part of the time of its outermost call
+            if (!recursive) total += time;
+            self += selfTime;
+        }
+    }
+
+    private static class Frame
+    {
+        final String function;
+        final String stack;
+        final boolean recursive;
+        final long start = System.nanoTime();
+        long children = 0L;
+
+        Frame(String function, String stack, boolean recursive)
+        {
+            this.function = function;
+            this.stack = stack;
+            this.recursive = recursive;
+        }
+    }
+
+    private static class Session
+    {
+        final String app;
+        final int ticks;
+        final ServerCommandSource requester;
+        final Path folder;
+        int ticksLeft;
+        final Map<String, Stats> functions = new ConcurrentHashMap<>();
+        final Map<String, Stats> stacks = new ConcurrentHashMap<>();
+        final ThreadLocal<Deque<Frame>> frames = ThreadLocal.withInitial(ArrayDeque::new);
+
+        Session(String app, int ticks, ServerCommandSource requester, Path folder)
+        {
+            this.app = app;
+            this.ticks = ticks;
+            this.ticksLeft = ticks;
+            this.requester = requester;
+            this.folder = folder;
+        }
+    }
+
+    private static volatile Session session = null;
+
+    /**
+     * Starts collecting times of functions of the app, replacing the currently running profile if there is one
+     * @param folder where to save the call stacks once done, or null to only report to the requester
+     */
+    public static void start(ServerCommandSource requester, String app, int ticks, Path folder)
+    {
+        session = new Session(app, ticks, requester, folder);
+        Messenger.m(requester, "gi Profiling "+app+" for "+ticks+" ticks");
+    }
+
+    /**
+     * Called once per server tick, reports the results once the requested number of ticks passes
+     */
+    public static void tick()
+    {
+        Session current = session;
+        if (current == null) return;
+        if (--current.ticksLeft > 0) return;
+        session = null;
+        report(current);
+    }
+
+    public static boolean isProfiling()
+    {
+        return session != null;
+    }
+
+    /**
+     * Runs the call, measuring its time if the function belongs to the app being profiled
+     * @param token token the call was made from
+     */
+    public static <T> T profile(ScriptHost host, FunctionValue function, Tokenizer.Token token, Supplier<T> call)
+    {
+        Session current = session;
+        if (current == null || !current.app.equals(host.getName())) return call.get();
+        Deque<Frame> frames = current.frames.get();
+        String name = function.fullName();
+        Frame parent = frames.peek();
+        boolean recursive = false;
+        for (Frame frame : frames)
+        {
+            if (frame.function.equals(name))
+            {
+                recursive = true;
+                break;
+            }
+        }
+        String label = token == null ? name : name+":"+(token.lineno+1);
+        Frame frame = new Frame(name, (parent == null ? current.app : parent.stack)+";"+label, recursive);
+        frames.push(frame);
+        try
+        {
+            return call.get();
+        }
+        finally
+        {
+            frames.pop();
+            long time = System.nanoTime() - frame.start;
+            if (parent != null) parent.children += time;
+            current.functions.computeIfAbsent(frame.function, l -> new Stats()).add(time, time - frame.children, frame.recursive);
+            current.stacks.computeIfAbsent(frame.stack, s -> new Stats()).add(time, time - frame.children, false);
+        }
+    }
+
+    private static void report(Session session)
+    {
+        ServerCommandSource source = session.requester;
+        double divider = 1.0D / session.ticks / 1000000;
+        long total = session.stacks.entrySet().stream().mapToLong(e -> e.getValue().self).sum();
+        Messenger.m(source, "w ");
+        Messenger.m(source, "wb Functions of "+session.app+" per tick: ", String.format("yb %.3fms", divider * total));
+        if (session.functions.isEmpty()) return;
+        Messenger.m(source, "wb Top "+TOP_ENTRIES+" by own time:");
+        top(session.functions, Comparator.comparingLong(s -> s.self)).forEach(e -> Messenger.m(source,
+                "w - "+e.getKey()+": ", String.format("y %.3fms", divider * e.getValue().self),
+                String.format("g  (%.1f calls)", 1.0D * e.getValue().calls / session.ticks)
+        ));
+        Messenger.m(source, "wb Top "+TOP_ENTRIES+" by total time:");
+        top(session.functions, Comparator.comparingLong(s -> s.total)).forEach(e -> Messenger.m(source,
+                "w - "+e.getKey()+": ", String.format("y %.3fms", divider * e.getValue().total)
+        ));
+        Messenger.m(source, "wb Top "+TOP_ENTRIES+" call stacks by own time:");
+        top(session.stacks, Comparator.comparingLong(s -> s.self)).forEach(e -> Messenger.m(source,
+                "w - "+e.getKey().replace(";", " > ")+": ", String.format("y %.3fms", divider * e.getValue().self)
+        ));
+        if (session.folder != null) dump(session);
+    }
+
+    private static List<Map.Entry<String, Stats>> top(Map<String, Stats> stats, Comparator<Stats> order)
+    {
+        return stats.entrySet().stream().sorted(Map.Entry.comparingByValue(order.reversed())).limit(TOP_ENTRIES).collect(Collectors.toList());
+    }
+
+    private static void dump(Session session)
+    {
+        String name = session.app+"-"+new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())+".folded";
+        Path file = session.folder.resolve(name);
+        try
+        {
+            Files.createDirectories(session.folder);
+            try (BufferedWriter writer = Files.newBufferedWriter(file))
+            {
+                // one line per call stack with own time in microseconds, as flame graph tools expect
+                for (Map.Entry<String, Stats> entry : session.stacks.entrySet())
+                {
+                    writer.write(entry.getKey()+" "+entry.getValue().self / 1000);
+                    writer.newLine();
+                }
+            }
+            Messenger.m(session.requester, "gi Call stacks saved to scripts/profiles/"+name);
+        }
+        catch (IOException exc)
+        {
+            CarpetScriptServer.LOG.warn("Failed to save profile of "+session.app+": "+exc.getMessage());
+            Messenger.m(session.requester, "r Failed to save call stacks of "+session.app);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package carpet.script;
+
+import carpet.script.exception.InternalExpressionException;
+import carpet.script.value.BooleanValue;
+import carpet.script.value.MapValue;
+import carpet.script.value.NumericValue;
+import carpet.script.value.StringValue;
+import carpet.script.value.Value;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Threads running tasks of an app submitted to one executor, with a limited number of threads and waiting tasks,
+ * so apps starting tasks in a loop queue them up instead of creating a thread for each of them.
+ */
+public class TaskPool
+{
+    public enum Rejection
+    {
+        /** fails the call starting the task */
+        ERROR,
+        /** runs the task right away in the thread that starts it */
+        CALLER,
+        /** drops the task, which completes with null */
+        DISCARD
+    }
+
+    public static class Settings
+    {
+        public static final Settings DEFAULT = new Settings(64, 4096, false, Rejection.ERROR);
+
+        public final int threads;
+        public final int queue;
+        public final boolean workStealing;
+        public final Rejection rejection;
+
+        public Settings(int threads, int queue, boolean workStealing, Rejection rejection)
+        {
+            this.threads = threads;
+            this.queue = queue;
+            this.workStealing = workStealing;
+            this.rejection = rejection;
+        }
+
+        /**
+         * Reads settings from app config, with keys starting with the prefix, using base for missing keys
+         */
+        public static Settings fromConfig(Map<Value, Value> config, String prefix, Settings base)
+        {
+            int threads = base.threads;
+            int queue = base.queue;
+            boolean workStealing = base.workStealing;
+            Rejection rejection = base.rejection;
+            Value value = config.get(new StringValue(prefix+"threads"));
+            if (value != null)
+            {
+                threads = NumericValue.asNumber(value, prefix+"threads").getInt();
+                if (threads < 1) throw new InternalExpressionException("'"+prefix+"threads' should be at least 1");
+            }
+            value = config.get(new StringValue(prefix+"queue"));
+            if (value != null)
+            {
+                queue = NumericValue.asNumber(value, prefix+"queue").getInt();
+                if (queue < 0) throw new InternalExpressionException("'"+prefix+"queue' can't be negative");
+            }
+            value = config.get(new StringValue(prefix+"work_stealing"));
+            if (value != null) workStealing = value.getBoolean();
+            value = config.get(new StringValue(prefix+"rejection"));
+            if (value != null)
+            {
+                try
+                {
+                    rejection = Rejection.valueOf(value.getString().toUpperCase(Locale.ROOT));
+                }
+                catch (IllegalArgumentException exc)
+                {
+                    throw new InternalExpressionException("'"+prefix+"rejection' should be 'error', 'caller' or 'discard', not "+value.getString());
+                }
+            }
+            return new Settings(threads, queue, workStealing, rejection);
+        }
+    }
+
+    private final String name;
+    private final Settings settings;
+    private final ExecutorService executor;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public TaskPool(String name, Settings settings)
+    {
+        this.name = name;
+        this.settings = settings;
+        AtomicInteger sequence = new AtomicInteger();
+        if (settings.workStealing)
+        {
+            executor = new ForkJoinPool(settings.threads, pool ->
+            {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(name+" #"+sequence.incrementAndGet());
+                return thread;
+            }, null, true);
+        }
+        else
+        {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(settings.threads, settings.threads, 60L, TimeUnit.SECONDS,
+                    settings.queue == 0 ? new SynchronousQueue<>() : new LinkedBlockingQueue<>(settings.queue),
+                    runnable -> new Thread(runnable, name+" #"+sequence.incrementAndGet()));
+            // idle pools don't keep their threads around, like cached pools
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+    }
+
+    /**
+     * Starts the task, or handles it as the pool settings say if the pool is full
+     */
+    public CompletableFuture<Value> submit(Supplier<Value> task)
+    {
+        if (executor.isShutdown()) return CompletableFuture.completedFuture(Value.NULL);
+        Supplier<Value> counted = () ->
+        {
+            try
+            {
+                return task.get();
+            }
+            finally
+            {
+                completed.increment();
+            }
+        };
+        try
+        {
+            // fork join pools queue without limits, so their limit is checked here
+            if (settings.workStealing && queued() >= Math.max(settings.queue, settings.threads)) throw new RejectedExecutionException();
+            return CompletableFuture.supplyAsync(counted, executor);
+        }
+        catch (RejectedExecutionException exc)
+        {
+            if (executor.isShutdown()) return CompletableFuture.completedFuture(Value.NULL);
+            rejected.increment();
+            switch (settings.rejection)
+            {
+                case CALLER:
+                    return CompletableFuture.completedFuture(counted.get());
+                case DISCARD:
+                    return CompletableFuture.completedFuture(Value.NULL);
+                default:
+                    throw new InternalExpressionException(name+" is full, with "+activeCount()+" running and "+queued()+" waiting tasks");
+            }
+        }
+    }
+
+    public ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    public int activeCount()
+    {
+        if (executor instanceof ForkJoinPool) return ((ForkJoinPool) executor).getActiveThreadCount();
+        return ((ThreadPoolExecutor) executor).getActiveCount();
+    }
+
+    private long queued()
+    {
+        if (executor instanceof ForkJoinPool)
+        {
+            ForkJoinPool pool = (ForkJoinPool) executor;
+            return pool.getQueuedSubmissionCount()+pool.getQueuedTaskCount();
+        }
+        return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+
+    private int threadCount()
+    {
+        if (executor instanceof ForkJoinPool) return ((ForkJoinPool) executor).getPoolSize();
+        return ((ThreadPoolExecutor) executor).getPoolSize();
+    }
+
+    public Value getStats()
+    {
+        Map<Value, Value> stats = new HashMap<>();
+        stats.put(new StringValue("threads"), new NumericValue(threadCount()));
+        stats.put(new StringValue("active"), new NumericValue(activeCount()));
+        stats.put(new StringValue("queued"), new NumericValue(queued()));
+        stats.put(new StringValue("completed"), new NumericValue(completed.sum()));
+        stats.put(new StringValue("rejected"), new NumericValue(rejected.sum()));
+        stats.put(new StringValue("max_threads"), new NumericValue(settings.threads));
+        stats.put(new StringValue("max_queue"), new NumericValue(settings.queue));
+        stats.put(new StringValue("work_stealing"), BooleanValue.of(settings.workStealing));
+        stats.put(new StringValue("rejection"), new StringValue(settings.rejection.name().toLowerCase(Locale.ROOT)));
+        return MapValue.wrap(stats);
+    }
+}
@@ -754,7 +754,7 @@ public class Auxiliary {
             ServerCommandSource innerSource = outerSource.withWorld((ServerWorld)world);
             Context newCtx = c.recreate();
             ((CarpetContext) newCtx).s = innerSource;
-            newCtx.variables = c.variables;
+            newCtx.shareVariablesWith(c);
             Value retval = lv.get(1).evalValue(newCtx);
             return (cc, tt) -> retval;
         });
@@ -787,7 +787,7 @@ public class Auxiliary {
                 throw new InternalExpressionException("'plop' needs extra argument indicating what to plop");
             String what = lv.get(locator.offset).getString();
             Value [] result = new Value[]{Value.NULL};
-            ((CarpetContext)c).s.getServer().submitAndJoin( () ->
+            ((CarpetScriptHost)c.host).dock( () ->
             {
                 Boolean res = FeatureGenerator.plop(what, ((CarpetContext) c).s.getWorld(), locator.block.getPos());
 
@@ -1054,7 +1054,7 @@ public class Auxiliary {
             Path packFloder = dbFloder.resolve(name+".zip");
             if (Files.exists(packFloder) || Files.exists(dbFloder.resolve(name))) return Value.NULL;
             Boolean [] successful = new Boolean[]{true};
-            server.submitAndJoin( () ->
+            ((CarpetScriptHost)c.host).dock( () ->
             {
                 try {
                     //Files.createDirectory(packFloder);
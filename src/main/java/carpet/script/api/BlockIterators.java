@@ -1,6 +1,7 @@
 package carpet.script.api;
 
 import carpet.script.CarpetContext;
+import carpet.script.CarpetScriptHost;
 import carpet.script.Context;
 import carpet.script.Expression;
 import carpet.script.Fluff;
@@ -10,19 +11,37 @@ import carpet.script.argument.Vector3Argument;
 import carpet.script.exception.BreakStatement;
 import carpet.script.exception.ContinueStatement;
 import carpet.script.exception.InternalExpressionException;
+import carpet.script.utils.InputValidator;
+import carpet.script.utils.SectionCursor;
+import carpet.script.utils.WorldSnapshot;
 import carpet.script.value.BlockValue;
+import carpet.script.value.FunctionValue;
 import carpet.script.value.LazyListValue;
 import carpet.script.value.ListValue;
 import carpet.script.value.NumericValue;
+import carpet.script.value.SnapshotValue;
 import carpet.script.value.Value;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
 import net.minecraft.server.world.ServerWorld;
+import net.minecraft.tag.Tag;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.Vec3i;
+import net.minecraft.util.registry.Registry;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 import static java.lang.Math.abs;
 import static java.lang.Math.max;
@@ -89,54 +108,8 @@ public class BlockIterators {
             int yprange = upperRange.getY();
             int zprange = upperRange.getZ();
 
-            //saving outer scope
-            LazyValue _x = c.getVariable("_x");
-            LazyValue _y = c.getVariable("_y");
-            LazyValue _z = c.getVariable("_z");
-            LazyValue __ = c.getVariable("_");
-            int sCount = 0;
-            outer:for (int y=cy-yrange; y <= cy+yprange; y++)
-            {
-                int yFinal = y;
-                c.setVariable("_y", (c_, t_) -> new NumericValue(yFinal).bindTo("_y"));
-                for (int x=cx-xrange; x <= cx+xprange; x++)
-                {
-                    int xFinal = x;
-                    c.setVariable("_x", (c_, t_) -> new NumericValue(xFinal).bindTo("_x"));
-                    for (int z=cz-zrange; z <= cz+zprange; z++)
-                    {
-                        int zFinal = z;
-
-                        c.setVariable("_z", (c_, t_) -> new NumericValue(zFinal).bindTo("_z"));
-                        Value blockValue = BlockValue.fromCoords(((CarpetContext)c), xFinal,yFinal,zFinal).bindTo("_");
-                        c.setVariable( "_", (cc_, t_c) -> blockValue);
-                        Value result;
-                        try
-                        {
-                            result = expr.evalValue(c, t);
-                        }
-                        catch (ContinueStatement notIgnored)
-                        {
-                            result = notIgnored.retval;
-                        }
-                        catch (BreakStatement notIgnored)
-                        {
-                            break outer;
-                        }
-                        if (t != Context.VOID && result.getBoolean())
-                        {
-                            sCount += 1;
-                        }
-                    }
-                }
-            }
-            //restoring outer scope
-            c.setVariable("_x", _x);
-            c.setVariable("_y", _y);
-            c.setVariable("_z", _z);
-            c.setVariable("_", __);
-            int finalSCount = sCount;
-            return (c_, t_) -> new NumericValue(finalSCount);
+            int sCount = iterateVolume(cc, t, expr, cx-xrange, cy-yrange, cz-zrange, cx+xprange, cy+yprange, cz+zprange);
+            return (c_, t_) -> new NumericValue(sCount);
         });
 
         // must be lazy
@@ -165,53 +138,108 @@ public class BlockIterators {
             int maxz = max(z1, z2);
             LazyValue expr = llv.get(pos2Locator.offset);
 
-            //saving outer scope
-            LazyValue _x = c.getVariable("_x");
-            LazyValue _y = c.getVariable("_y");
-            LazyValue _z = c.getVariable("_z");
-            LazyValue __ = c.getVariable("_");
-            int sCount = 0;
-            outer:for (int y=miny; y <= maxy; y++)
+            int sCount = iterateVolume(cc, t, expr, minx, miny, minz, maxx, maxy, maxz);
+            return (c_, t_) -> new NumericValue(sCount);
+        });
+
+        expression.addContextFunction("find_blocks", -1, (c, t, lv) ->
+        {
+            CarpetContext cc = (CarpetContext)c;
+            BlockArgument pos1Locator = BlockArgument.findIn(cc, lv, 0);
+            BlockArgument pos2Locator = BlockArgument.findIn(cc, lv, pos1Locator.offset);
+            if (lv.size() != pos2Locator.offset+1)
+                throw new InternalExpressionException("'find_blocks' takes two block positions, and a block, block tag or function to match blocks");
+            BlockPos pos1 = pos1Locator.block.getPos();
+            BlockPos pos2 = pos2Locator.block.getPos();
+            Predicate<BlockState> matcher = blockMatcher(cc, lv.get(pos2Locator.offset));
+            // each block state is tested once
+            Map<BlockState, Boolean> tested = new IdentityHashMap<>();
+            Predicate<BlockState> matches = state -> tested.computeIfAbsent(state, matcher::test);
+            ServerWorld world = cc.s.getWorld();
+            int minx = min(pos1.getX(), pos2.getX());
+            int miny = max(min(pos1.getY(), pos2.getY()), world.getBottomY());
+            int minz = min(pos1.getZ(), pos2.getZ());
+            int maxx = max(pos1.getX(), pos2.getX());
+            int maxy = min(max(pos1.getY(), pos2.getY()), world.getTopY()-1);
+            int maxz = max(pos1.getZ(), pos2.getZ());
+            boolean matchesAir = matches.test(Blocks.AIR.getDefaultState());
+            List<Value> found = new ArrayList<>();
+            for (int sx = minx >> 4; sx <= maxx >> 4; sx++) for (int sz = minz >> 4; sz <= maxz >> 4; sz++)
             {
-                int yFinal = y;
-                c.setVariable("_y", (c_, t_) -> new NumericValue(yFinal).bindTo("_y"));
-                for (int x=minx; x <= maxx; x++)
+                ChunkSection[] sections = world.getChunk(sx, sz).getSectionArray();
+                for (int sy = miny >> 4; sy <= maxy >> 4; sy++)
                 {
-                    int xFinal = x;
-                    c.setVariable("_x", (c_, t_) -> new NumericValue(xFinal).bindTo("_x"));
-                    for (int z=minz; z <= maxz; z++)
-                    {
-                        int zFinal = z;
-                        c.setVariable("_z", (c_, t_) -> new NumericValue(zFinal).bindTo("_z"));
-                        Value blockValue = BlockValue.fromCoords(((CarpetContext)c), xFinal,yFinal,zFinal).bindTo("_");
-                        c.setVariable( "_", (cc_, t_c) -> blockValue);
-                        Value result;
-                        try
-                        {
-                            result = expr.evalValue(c, t);
-                        }
-                        catch (ContinueStatement notIgnored)
-                        {
-                            result = notIgnored.retval;
-                        }
-                        catch (BreakStatement notIgnored)
-                        {
-                            break outer;
-                        }
-                        if (t != Context.VOID && result.getBoolean())
-                        {
-                            sCount += 1;
-                        }
-                    }
+                    ChunkSection section = sections[world.sectionCoordToIndex(sy)];
+                    // palettes tell which states a section has, without looking at its blocks
+                    if (section == WorldChunk.EMPTY_SECTION ? !matchesAir : !section.hasAny(matches)) continue;
+                    for (int y = max(miny, sy << 4), ymax = min(maxy, (sy << 4)+15); y <= ymax; y++)
+                        for (int x = max(minx, sx << 4), xmax = min(maxx, (sx << 4)+15); x <= xmax; x++)
+                            for (int z = max(minz, sz << 4), zmax = min(maxz, (sz << 4)+15); z <= zmax; z++)
+                            {
+                                BlockState state = section == WorldChunk.EMPTY_SECTION ? Blocks.AIR.getDefaultState() : section.getBlockState(x & 15, y & 15, z & 15);
+                                if (matches.test(state)) found.add(new BlockValue(state, world, new BlockPos(x, y, z)));
+                            }
                 }
             }
-            //restoring outer scope
-            c.setVariable("_x", _x);
-            c.setVariable("_y", _y);
-            c.setVariable("_z", _z);
-            c.setVariable("_", __);
-            int finalSCount = sCount;
-            return (c_, t_) -> new NumericValue(finalSCount);
+            return ListValue.wrap(found);
+        });
+
+        expression.addContextFunction("world_snapshot", -1, (c, t, lv) ->
+        {
+            CarpetContext cc = (CarpetContext)c;
+            BlockArgument pos1Locator = BlockArgument.findIn(cc, lv, 0);
+            BlockArgument pos2Locator = BlockArgument.findIn(cc, lv, pos1Locator.offset);
+            ServerWorld world = cc.s.getWorld();
+            WorldSnapshot snapshot = WorldSnapshot.of(world, pos1Locator.block.getPos(), pos2Locator.block.getPos());
+            // each part is copied between ticks, so tasks never hold the main thread for the whole box
+            int[] next = new int[]{0};
+            while (next[0] >= 0) ((CarpetScriptHost)c.host).dock(() -> next[0] = snapshot.copyPart(world, next[0]));
+            return new SnapshotValue(snapshot);
+        });
+
+        expression.addContextFunction("snapshot_block", -1, (c, t, lv) ->
+        {
+            WorldSnapshot snapshot = snapshotFrom("snapshot_block", lv);
+            BlockPos pos = BlockArgument.findIn((CarpetContext)c, lv, 1).block.getPos();
+            BlockState state = snapshot.get(pos.getX(), pos.getY(), pos.getZ());
+            return state == null ? Value.NULL : new BlockValue(state, snapshotWorld((CarpetContext)c, snapshot), pos);
+        });
+
+        expression.addContextFunction("snapshot_find", 2, (c, t, lv) ->
+        {
+            WorldSnapshot snapshot = snapshotFrom("snapshot_find", lv);
+            Predicate<BlockState> matcher = blockMatcher((CarpetContext)c, lv.get(1));
+            ServerWorld world = snapshotWorld((CarpetContext)c, snapshot);
+            // each block state is tested once, before blocks are searched in parallel, so no script code runs in workers
+            Set<BlockState> matching = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (BlockState state : snapshot.states()) if (matcher.test(state)) matching.add(state);
+            if (matching.isEmpty()) return ListValue.of();
+            return ListValue.wrap(snapshot.visitSections(section ->
+            {
+                List<Value> found = new ArrayList<>();
+                boolean any = false;
+                for (BlockState state : section.palette) any |= matching.contains(state);
+                if (any) forEachBlock(snapshot, section, (pos, state) -> {
+                    if (matching.contains(state)) found.add(new BlockValue(state, world, pos));
+                });
+                return found;
+            }));
+        });
+
+        expression.addContextFunction("snapshot_scan", 2, (c, t, lv) ->
+        {
+            WorldSnapshot snapshot = snapshotFrom("snapshot_scan", lv);
+            if (!(lv.get(1) instanceof FunctionValue) || ((FunctionValue) lv.get(1)).getNumParams() != 1)
+                throw new InternalExpressionException("'snapshot_scan' requires a function taking one argument, a block");
+            FunctionValue function = (FunctionValue) lv.get(1);
+            ServerWorld world = snapshotWorld((CarpetContext)c, snapshot);
+            // script code runs on the calling thread only, so it sees its variables and the world as usual
+            List<Value> results = new ArrayList<>();
+            snapshot.forEachSection(section -> forEachBlock(snapshot, section, (pos, state) -> {
+                Value result = function.callInContext(c, Context.NONE, Collections.singletonList(new BlockValue(state, world, pos))).evalValue(c);
+                if (!result.isNull()) results.add(result);
+            }));
+            return ListValue.wrap(results);
         });
 
         expression.addContextFunction("neighbours", -1, (c, t, lv)->
@@ -515,4 +543,166 @@ public class BlockIterators {
             }
         });
     }
+
+    /**
+     * Matches blocks to a block tag, like '#logs', a function called with a block, or any state of a block
+     * given by name, or the exact state if the name specifies its properties
+     */
+    private static Predicate<BlockState> blockMatcher(CarpetContext c, Value value)
+    {
+        if (value instanceof FunctionValue)
+        {
+            FunctionValue function = (FunctionValue) value;
+            if (function.getNumParams() != 1)
+                throw new InternalExpressionException("Function to match blocks should take one argument, a block");
+            return state -> function.callInContext(c, Context.NONE, Collections.singletonList(new BlockValue(state, null, null))).evalValue(c).getBoolean();
+        }
+        String name = value.getString();
+        if (!(value instanceof BlockValue) && name.startsWith("#"))
+        {
+            Tag<Block> tag = c.s.getServer().getTagManager().getOrCreateTagGroup(Registry.BLOCK_KEY).getTag(InputValidator.identifierOf(name.substring(1)));
+            if (tag == null) throw new InternalExpressionException("Unknown block tag: "+name);
+            return state -> state.isIn(tag);
+        }
+        BlockState target = BlockArgument.findIn(c, Collections.singletonList(value), 0, true).block.getBlockState();
+        if (!(value instanceof BlockValue) && name.contains("[")) return state -> state == target;
+        Block block = target.getBlock();
+        return state -> state.isOf(block);
+    }
+
+    private static WorldSnapshot snapshotFrom(String name, List<Value> lv)
+    {
+        if (lv.isEmpty() || !(lv.get(0) instanceof SnapshotValue))
+            throw new InternalExpressionException("'"+name+"' requires a snapshot as the first argument");
+        return ((SnapshotValue) lv.get(0)).getSnapshot();
+    }
+
+    private static ServerWorld snapshotWorld(CarpetContext c, WorldSnapshot snapshot)
+    {
+        return c.s.getServer().getWorld(snapshot.dimension);
+    }
+
+    private static void forEachBlock(WorldSnapshot snapshot, WorldSnapshot.Section section, BiConsumer<BlockPos, BlockState> action)
+    {
+        for (int y = max(snapshot.miny, section.y << 4), ymax = min(snapshot.maxy, (section.y << 4)+15); y <= ymax; y++)
+            for (int x = max(snapshot.minx, section.x << 4), xmax = min(snapshot.maxx, (section.x << 4)+15); x <= xmax; x++)
+                for (int z = max(snapshot.minz, section.z << 4), zmax = min(snapshot.maxz, (section.z << 4)+15); z <= zmax; z++)
+                    action.accept(new BlockPos(x, y, z), section.get(x, y, z));
+    }
+
+    /**
+     * Lazy value returning whatever value it holds at the moment
+     */
+    private static class Binding implements LazyValue
+    {
+        Value value;
+
+        @Override
+        public Value evalValue(Context c, Context.Type type)
+        {
+            return value;
+        }
+    }
+
+    /**
+     * Block which state is read through the cursor once it is needed, like blocks from coordinates read it from the world
+     */
+    private static class CursorBlock extends BlockValue
+    {
+        private final SectionCursor cursor;
+        private BlockState state = null;
+
+        CursorBlock(SectionCursor cursor, ServerWorld world, BlockPos pos)
+        {
+            super(null, world, pos);
+            this.cursor = cursor;
+        }
+
+        @Override
+        public BlockState getBlockState()
+        {
+            if (state == null)
+            {
+                BlockPos pos = getPos();
+                state = cursor.getBlockState(pos.getX(), pos.getY(), pos.getZ());
+            }
+            return state;
+        }
+    }
+
+    private static LazyValue[] coordinates(int from, int to, String name)
+    {
+        LazyValue[] values = new LazyValue[to - from + 1];
+        for (int i = 0; i < values.length; i++)
+        {
+            Value value = new NumericValue(from + i).bindTo(name);
+            values[i] = (c, t) -> value;
+        }
+        return values;
+    }
+
+    /**
+     * Runs the expression for each block of the box, y first, then x, then z, with block states read a section at a time
+     * once the expression asks for them
+     * @return number of blocks the expression was true for
+     */
+    private static int iterateVolume(CarpetContext c, Context.Type t, LazyValue expr, int minx, int miny, int minz, int maxx, int maxy, int maxz)
+    {
+        // values of coordinates are created once, instead of each time they change
+        LazyValue[] xs = coordinates(minx, maxx, "_x");
+        LazyValue[] ys = coordinates(miny, maxy, "_y");
+        LazyValue[] zs = coordinates(minz, maxz, "_z");
+        Binding block = new Binding();
+        ServerWorld world = c.s.getWorld();
+        SectionCursor cursor = new SectionCursor(world);
+        BlockPos origin = c.origin;
+        int ox = origin.getX();
+        int oy = origin.getY();
+        int oz = origin.getZ();
+        //saving outer scope
+        LazyValue _x = c.getVariable("_x");
+        LazyValue _y = c.getVariable("_y");
+        LazyValue _z = c.getVariable("_z");
+        LazyValue __ = c.getVariable("_");
+        int sCount = 0;
+        outer:for (int y=miny; y <= maxy; y++)
+        {
+            c.setVariable("_y", ys[y-miny]);
+            for (int x=minx; x <= maxx; x++)
+            {
+                c.setVariable("_x", xs[x-minx]);
+                for (int z=minz; z <= maxz; z++)
+                {
+                    c.host.checkBudget(c);
+                    c.setVariable("_z", zs[z-minz]);
+                    int bx = ox+x, by = oy+y, bz = oz+z;
+                    block.value = new CursorBlock(cursor, world, new BlockPos(bx, by, bz)).bindTo("_");
+                    c.setVariable( "_", block);
+                    Value result;
+                    try
+                    {
+                        result = expr.evalValue(c, t);
+                    }
+                    catch (ContinueStatement notIgnored)
+                    {
+                        result = notIgnored.retval;
+                    }
+                    catch (BreakStatement notIgnored)
+                    {
+                        break outer;
+                    }
+                    if (t != Context.VOID && result.getBoolean())
+                    {
+                        sCount += 1;
+                    }
+                }
+            }
+        }
+        //restoring outer scope
+        c.setVariable("_x", _x);
+        c.setVariable("_y", _y);
+        c.setVariable("_z", _z);
+        c.setVariable("_", __);
+        return sCount;
+    }
 }
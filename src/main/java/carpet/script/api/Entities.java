@@ -1,5 +1,6 @@
 package carpet.script.api;
 
+import carpet.fakes.WorldInterface;
 import carpet.script.CarpetContext;
 import carpet.script.CarpetEventServer;
 import carpet.script.CarpetScriptHost;
@@ -7,10 +8,14 @@ import carpet.script.Expression;
 import carpet.script.argument.FunctionArgument;
 import carpet.script.argument.Vector3Argument;
 import carpet.script.exception.InternalExpressionException;
+import carpet.script.value.AbstractListValue;
 import carpet.script.value.EntityValue;
+import carpet.script.value.LazyListValue;
 import carpet.script.value.ListValue;
+import carpet.script.value.MapValue;
 import carpet.script.value.NBTSerializableValue;
 import carpet.script.value.NumericValue;
+import carpet.script.value.StringValue;
 import carpet.script.value.Value;
 import com.mojang.brigadier.StringReader;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
@@ -21,6 +26,7 @@ import net.minecraft.entity.mob.MobEntity;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.predicate.entity.EntityPredicates;
+import net.minecraft.scoreboard.AbstractTeam;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ServerWorld;
@@ -31,14 +37,19 @@ import net.minecraft.util.registry.Registry;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class Entities {
+    private static final Set<String> QUERY_OPTIONS = Set.of("center", "range", "limit", "sort", "tag", "team", "nbt");
+
     public static void apply(Expression expression)
     {
         expression.addContextFunction("player", -1, (c, t, lv) ->
@@ -200,6 +211,21 @@ public class Entities {
             return ListValue.wrap(entityList.stream().map(EntityValue::new).collect(Collectors.toList()));
         });
 
+        // entity_query(type, options?) -> iterator of entities
+        expression.addContextFunction("entity_query", -1, (c, t, lv) ->
+        {
+            if (lv.size() < 1 || lv.size() > 2) throw new InternalExpressionException("'entity_query' requires entity type and optional map of query options");
+            CarpetContext cc = (CarpetContext)c;
+            EntityValue.EntityClassDescriptor eDesc = EntityValue.getEntityDescriptor(lv.get(0).getString(), cc.s.getServer());
+            Map<Value, Value> options = Collections.emptyMap();
+            if (lv.size() == 2)
+            {
+                if (!(lv.get(1) instanceof MapValue)) throw new InternalExpressionException("Options of 'entity_query' should be a map");
+                options = ((MapValue) lv.get(1)).getMap();
+            }
+            return queryEntities(cc, eDesc, options);
+        });
+
         expression.addContextFunction("entity_selector", -1, (c, t, lv) ->
         {
             String selector = lv.get(0).getString();
@@ -220,17 +246,58 @@ public class Entities {
             Value v = lv.get(0);
             if (!(v instanceof EntityValue))
                 throw new InternalExpressionException("First argument to query should be an entity");
-            String what = lv.get(1).getString().toLowerCase(Locale.ROOT);
+            Value arg = lv.size()==2 ? null : lv.size()==3 ? lv.get(2) : ListValue.wrap(lv.subList(2, lv.size()));
+            Value feature = lv.get(1);
+            String what = feature instanceof EntityValue.Feature ? feature.getString() : feature.getString().toLowerCase(Locale.ROOT);
             if (what.equals("tags"))
                 c.host.issueDeprecation("'tags' for entity querying");
-            Value retval;
-            if (lv.size()==2)
-                retval = ((EntityValue) v).get(what, null);
-            else if (lv.size()==3)
-                retval = ((EntityValue) v).get(what, lv.get(2));
-            else
-                retval = ((EntityValue) v).get(what, ListValue.wrap(lv.subList(2, lv.size())));
-            return retval;
+            if (feature instanceof EntityValue.Feature)
+                return ((EntityValue) v).get((EntityValue.Feature) feature, arg);
+            return ((EntityValue) v).get(what, arg);
+        });
+        // feature names written in the code are looked up once, when it is parsed
+        expression.addConstantArgumentResolver("query", 1, EntityValue::resolveFeature);
+        expression.addConstantArgumentResolver("~", 1, EntityValue::resolveFeature);
+
+        expression.addContextFunction("query_many", -1, (c, t, lv) ->
+        {
+            if (lv.size() < 2)
+                throw new InternalExpressionException("'query_many' takes a list of entities and at least one feature to query");
+            if (!(lv.get(0) instanceof AbstractListValue))
+                throw new InternalExpressionException("First argument to query_many should be a list of entities");
+            List<Value> features = lv.subList(1, lv.size());
+            List<EntityValue.Feature> resolved = new ArrayList<>(features.size());
+            List<Value> args = new ArrayList<>(features.size());
+            for (Value feature : features)
+            {
+                // features with arguments come as lists, like with ~
+                Value name = feature;
+                Value arg = null;
+                if (feature instanceof ListValue)
+                {
+                    List<Value> items = ((ListValue) feature).getItems();
+                    if (items.isEmpty()) throw new InternalExpressionException("'query_many' got an empty feature");
+                    name = items.get(0);
+                    if (items.size() == 2) arg = items.get(1);
+                    else if (items.size() > 2) arg = ListValue.wrap(items.subList(1, items.size()));
+                }
+                Value featureValue = EntityValue.resolveFeature(StringValue.of(name.getString().toLowerCase(Locale.ROOT)));
+                if (!(featureValue instanceof EntityValue.Feature))
+                    throw new InternalExpressionException("Unknown entity feature: "+name.getString());
+                resolved.add((EntityValue.Feature) featureValue);
+                args.add(arg);
+            }
+            List<Value> rows = new ArrayList<>();
+            for (Value entity : (AbstractListValue) lv.get(0))
+            {
+                if (!(entity instanceof EntityValue))
+                    throw new InternalExpressionException("'query_many' expects a list of entities, got "+entity.getTypeString());
+                List<Value> row = new ArrayList<>(resolved.size());
+                for (int i = 0; i < resolved.size(); i++)
+                    row.add(((EntityValue) entity).get(resolved.get(i), args.get(i)));
+                rows.add(ListValue.wrap(row));
+            }
+            return ListValue.wrap(rows);
         });
 
         // or update
@@ -243,15 +310,14 @@ public class Entities {
             Value v = lv.get(0);
             if (!(v instanceof EntityValue))
                 throw new InternalExpressionException("First argument to modify should be an entity");
-            String what = lv.get(1).getString();
-            if (lv.size()==2)
-                ((EntityValue) v).set(what, null);
-            else if (lv.size()==3)
-                ((EntityValue) v).set(what, lv.get(2));
+            Value toWhat = lv.size()==2 ? null : lv.size()==3 ? lv.get(2) : ListValue.wrap(lv.subList(2, lv.size()));
+            if (lv.get(1) instanceof EntityValue.Feature)
+                ((EntityValue) v).set((EntityValue.Feature) lv.get(1), toWhat);
             else
-                ((EntityValue) v).set(what, ListValue.wrap(lv.subList(2, lv.size())));
+                ((EntityValue) v).set(lv.get(1).getString(), toWhat);
             return v;
         });
+        expression.addConstantArgumentResolver("modify", 1, EntityValue::resolveFeature);
 
         expression.addContextFunction("entity_types", -1, (c, t, lv) ->
         {
@@ -310,4 +376,114 @@ public class Entities {
             return Value.NULL;
         });
     }
+
+    private static Value queryEntities(CarpetContext cc, EntityValue.EntityClassDescriptor eDesc, Map<Value, Value> options)
+    {
+        for (Value key : options.keySet())
+            if (!QUERY_OPTIONS.contains(key.getString()))
+                throw new InternalExpressionException("Unknown option of 'entity_query': "+key.getString());
+        // all filters run on plain entities, before any of them gets wrapped as a value
+        Predicate<Entity> filter = eDesc.filteringPredicate::test;
+        Value option = options.get(new StringValue("tag"));
+        if (option != null)
+        {
+            String tag = option.getString();
+            filter = filter.and(e -> e.getScoreboardTags().contains(tag));
+        }
+        option = options.get(new StringValue("team"));
+        if (option != null)
+        {
+            String team = option.getString();
+            filter = filter.and(e ->
+            {
+                AbstractTeam entityTeam = e.getScoreboardTeam();
+                return entityTeam != null && entityTeam.getName().equals(team);
+            });
+        }
+        option = options.get(new StringValue("nbt"));
+        if (option != null)
+        {
+            // serializing entities is the most expensive check, so it goes last
+            String key = option.getString();
+            filter = filter.and(e -> e.writeNbt(new NbtCompound()).contains(key));
+        }
+        Box area = null;
+        Vec3d center = null;
+        option = options.get(new StringValue("center"));
+        if (option != null)
+        {
+            Vector3Argument centerLocator = Vector3Argument.findIn(Collections.singletonList(option), 0, false, true);
+            center = centerLocator.vec;
+            Box centerBox = centerLocator.entity != null ? centerLocator.entity.getBoundingBox() : new Box(center, center);
+            Value rangeValue = options.get(new StringValue("range"));
+            if (rangeValue == null) throw new InternalExpressionException("'entity_query' with 'center' requires 'range'");
+            Vec3d range;
+            if (rangeValue instanceof NumericValue)
+            {
+                double r = ((NumericValue) rangeValue).getDouble();
+                range = new Vec3d(r, r, r);
+            }
+            else
+            {
+                Vector3Argument rangeLocator = Vector3Argument.findIn(Collections.singletonList(rangeValue), 0);
+                if (rangeLocator.fromBlock)
+                    throw new InternalExpressionException("Range of 'entity_query' cannot come from a block argument");
+                range = rangeLocator.vec;
+            }
+            area = centerBox.expand(range.x, range.y, range.z);
+        }
+        else if (options.containsKey(new StringValue("range")))
+        {
+            throw new InternalExpressionException("'entity_query' with 'range' requires 'center'");
+        }
+        int limit = Integer.MAX_VALUE;
+        option = options.get(new StringValue("limit"));
+        if (option != null)
+        {
+            limit = NumericValue.asNumber(option, "limit").getInt();
+            if (limit < 0) throw new InternalExpressionException("Limit of 'entity_query' can't be negative");
+        }
+        boolean nearest = false;
+        option = options.get(new StringValue("sort"));
+        if (option != null)
+        {
+            if (!option.getString().equals("nearest"))
+                throw new InternalExpressionException("'entity_query' can only sort by 'nearest', not "+option.getString());
+            if (center == null)
+                throw new InternalExpressionException("Sorting in 'entity_query' requires 'center'");
+            nearest = true;
+        }
+        // nearest entities can be anywhere in the area, so all of them are checked first
+        List<? extends Entity> entities = ((WorldInterface) cc.s.getWorld()).getEntitiesLimited(eDesc.directType, area, filter, nearest ? Integer.MAX_VALUE : limit);
+        if (nearest)
+        {
+            Vec3d from = center;
+            List<Entity> sorted = new ArrayList<>(entities);
+            sorted.sort(Comparator.comparingDouble(e -> e.squaredDistanceTo(from)));
+            entities = sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+        }
+        List<? extends Entity> found = entities;
+        return new LazyListValue()
+        {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return index < found.size();
+            }
+
+            @Override
+            public Value next()
+            {
+                return new EntityValue(found.get(index++));
+            }
+
+            @Override
+            public void reset()
+            {
+                index = 0;
+            }
+        };
+    }
 }
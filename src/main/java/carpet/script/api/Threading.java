@@ -1,9 +1,12 @@
 package carpet.script.api;
 
+import carpet.CarpetServer;
 import carpet.script.CarpetContext;
+import carpet.script.CarpetScriptHost;
 import carpet.script.Expression;
 import carpet.script.exception.ExpressionException;
 import carpet.script.exception.InternalExpressionException;
+import carpet.script.value.GeneratorValue;
 import carpet.script.value.ThreadValue;
 import carpet.script.value.Value;
 import net.minecraft.server.MinecraftServer;
@@ -14,6 +17,14 @@ public class Threading
 {
     public static void apply(Expression expression)
     {
+        expression.addUnaryFunction("generator_tick", (v) ->
+        {
+            if (!(v instanceof GeneratorValue))
+                throw new InternalExpressionException("'generator_tick' could only be used with a generator");
+            CarpetServer.scriptServer.events.tickGenerator((GeneratorValue) v);
+            return v;
+        });
+
         //"overidden" native call to cancel if on main thread
         expression.addContextFunction("task_join", 1, (c, t, lv) -> {
             if (((CarpetContext)c).s.getServer().isOnThread())
@@ -33,7 +44,8 @@ public class Threading
             RuntimeException[] internal = new RuntimeException[]{null};
             try
             {
-                ((CarpetContext) c).s.getServer().submitAndJoin(() ->
+                // after world changes the app queued before, if it batches them
+                ((CarpetScriptHost) c.host).dock(() ->
                 {
                     try
                     {
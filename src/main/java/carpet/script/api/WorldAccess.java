@@ -8,31 +8,37 @@ import carpet.fakes.ChunkTicketManagerInterface;
 import carpet.fakes.ServerChunkManagerInterface;
 import carpet.fakes.ServerWorldInterface;
 import carpet.fakes.SpawnHelperInnerInterface;
-import carpet.fakes.ThreadedAnvilChunkStorageInterface;
 import carpet.helpers.FeatureGenerator;
 import carpet.mixins.PointOfInterest_scarpetMixin;
 import carpet.script.CarpetContext;
+import carpet.script.CarpetEventServer;
+import carpet.script.CarpetScriptHost;
 import carpet.script.Context;
 import carpet.script.Expression;
 import carpet.script.Fluff;
 import carpet.script.LazyValue;
 import carpet.script.argument.BlockArgument;
+import carpet.script.argument.FunctionArgument;
 import carpet.script.argument.Vector3Argument;
 import carpet.script.exception.InternalExpressionException;
 import carpet.script.exception.ThrowStatement;
 import carpet.script.exception.Throwables;
 import carpet.script.utils.BiomeInfo;
+import carpet.script.utils.BlockEditSession;
+import carpet.script.utils.ChunkRegenerationJob;
 import carpet.script.utils.InputValidator;
 import carpet.script.utils.WorldTools;
 import carpet.script.value.BlockValue;
 import carpet.script.value.BooleanValue;
 import carpet.script.value.EntityValue;
+import carpet.script.value.FunctionValue;
 import carpet.script.value.ListValue;
 import carpet.script.value.MapValue;
 import carpet.script.value.NBTSerializableValue;
 import carpet.script.value.NullValue;
 import carpet.script.value.NumericValue;
 import carpet.script.value.StringValue;
+import carpet.script.value.ThreadValue;
 import carpet.script.value.Value;
 import carpet.script.value.ValueConversions;
 import carpet.utils.BlockInfo;
@@ -114,8 +120,14 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -130,6 +142,8 @@ public class WorldAccess {
         DIRECTION_MAP.put("x", Direction.EAST);
 
     }
+    private static final int MAX_LOADED_CHUNKS = 4096;
+
     private final static Map<String, ChunkTicketType<?>> ticketTypes = new HashMap<String, ChunkTicketType<?>>(){{
         put("portal", ChunkTicketType.PORTAL);
         put("teleport", ChunkTicketType.POST_TELEPORT);
@@ -561,7 +575,7 @@ public class WorldAccess {
             boolean force = false;
             if (lv.size() > locator.offset)
                 force = lv.get(locator.offset).getBoolean();
-            return BooleanValue.of(canHasChunk(((CarpetContext)c).s.getWorld(), new ChunkPos(pos), null, force));
+            return BooleanValue.of(canHasChunk(((CarpetContext)c).s.getWorld(), new ChunkPos(pos), force));
         });
 
         expression.addContextFunction("generation_status", -1, (c, t, lv) ->
@@ -659,7 +673,7 @@ public class WorldAccess {
             boolean previous = CarpetSettings.impendingFillSkipUpdates.get();
             if (previous) return lv.get(0);
             Value [] result = new Value[]{Value.NULL};
-            ((CarpetContext)c).s.getServer().submitAndJoin( () ->
+            ((CarpetScriptHost)c.host).dock( () ->
             {
                 try
                 {
@@ -747,8 +761,8 @@ public class WorldAccess {
                 return Value.FALSE;
             BlockState finalSourceBlockState = sourceBlockState;
             BlockPos targetPos = targetLocator.block.getPos();
-            Boolean[] result = new Boolean[]{true};
-            cc.s.getServer().submitAndJoin( () ->
+            // tasks of apps batching their changes don't wait for them, assuming they succeed
+            boolean changed = ((CarpetScriptHost)c.host).dockChange( () ->
             {
                 Clearable.clear(world.getBlockEntity(targetPos));
                 boolean success = world.setBlockState(targetPos, finalSourceBlockState, 2);
@@ -766,12 +780,40 @@ public class WorldAccess {
                         success = true;
                     }
                 }
-                result[0] = success;
+                return success;
             });
-            if (!result[0]) return Value.FALSE;
+            if (!changed) return Value.FALSE;
             return new BlockValue(finalSourceBlockState, world, targetLocator.block.getPos());
         });
 
+        expression.addContextFunction("set_blocks", 1, (c, t, lv) ->
+        {
+            CarpetContext cc = (CarpetContext)c;
+            Value changes = lv.get(0);
+            List<List<Value>> entries = new ArrayList<>();
+            if (changes instanceof MapValue)
+                ((MapValue) changes).getMap().forEach((pos, block) -> entries.add(Arrays.asList(pos, block)));
+            else if (changes instanceof ListValue)
+                for (Value entry : ((ListValue) changes).getItems())
+                {
+                    if (!(entry instanceof ListValue))
+                        throw new InternalExpressionException("'set_blocks' requires a list of position and block pairs, or a map of positions to blocks");
+                    entries.add(((ListValue) entry).getItems());
+                }
+            else
+                throw new InternalExpressionException("'set_blocks' requires a list of position and block pairs, or a map of positions to blocks");
+            BlockEditSession session = new BlockEditSession(cc.s.getWorld());
+            for (List<Value> entry : entries)
+            {
+                BlockArgument targetLocator = BlockArgument.findIn(cc, entry, 0);
+                BlockArgument sourceLocator = BlockArgument.findIn(cc, entry, targetLocator.offset, true);
+                session.add(targetLocator.block.getPos(), sourceLocator.block.getBlockState(), sourceLocator.block.getData());
+            }
+            int[] result = new int[]{0};
+            ((CarpetScriptHost)c.host).dock( () -> result[0] = session.commit());
+            return new NumericValue(result[0]);
+        });
+
         expression.addContextFunction("destroy", -1, (c, t, lv) ->
         {
             CarpetContext cc = (CarpetContext)c;
@@ -1185,7 +1227,7 @@ public class WorldAccess {
             CarpetContext cc = (CarpetContext)c;
             BlockPos pos = BlockArgument.findIn(cc, lv, 0).block.getPos();
             ServerWorld world = cc.s.getWorld();
-            cc.s.getServer().submitAndJoin( () -> WorldTools.forceChunkUpdate(pos, world));
+            ((CarpetScriptHost)c.host).dockChange( () -> WorldTools.forceChunkUpdate(pos, world));
             return Value.TRUE;
         });
 
@@ -1312,7 +1354,7 @@ public class WorldAccess {
             // good 'ol pointer
             Value[] result = new Value[]{Value.NULL};
             // technically a world modification. Even if we could let it slide, we will still park it
-            ((CarpetContext) c).s.getServer().submitAndJoin(() ->
+            ((CarpetScriptHost) c.host).dock(() ->
             {
                 Map<StructureFeature<?>, StructureStart<?>> structures = world.getChunk(pos).getStructureStarts();
                 if (lv.size() == locator.offset + 1)
@@ -1384,6 +1426,12 @@ public class WorldAccess {
         expression.addContextFunction("reset_chunk", -1, (c, t, lv) ->
         {
             CarpetContext cc = (CarpetContext)c;
+            FunctionValue callback = null;
+            if (lv.size() > 1 && lv.get(lv.size()-1) instanceof FunctionValue)
+            {
+                callback = (FunctionValue) lv.get(lv.size()-1);
+                lv = lv.subList(0, lv.size()-1);
+            }
             List<ChunkPos> requestedChunks = new ArrayList<>();
             if (lv.size() == 1)
             {
@@ -1430,25 +1478,68 @@ public class WorldAccess {
 
 
             ServerWorld world = cc.s.getWorld();
-
-            Value [] result = new Value[]{Value.NULL};
-
-            ((CarpetContext)c).s.getServer().submitAndJoin( () ->
+            CarpetScriptHost host = (CarpetScriptHost)c.host;
+            FunctionValue progress = callback;
+            // tasks wait for it while the server keeps ticking, the main thread does all of it right away
+            boolean onThread = cc.s.getServer().isOnThread();
+            ChunkRegenerationJob job = host.getScriptServer().regenerateChunks(host, world, requestedChunks, onThread);
+            int [] reported = new int[]{0};
+            BooleanSupplier finished = () ->
+            {
+                boolean done = job.isDone();
+                if (progress != null && job.processed() != reported[0])
+                {
+                    reported[0] = job.processed();
+                    Value response = progress.callInContext(c, Context.NONE, Arrays.asList(
+                            new NumericValue(reported[0]), new NumericValue(job.total())
+                    )).evalValue(c);
+                    if (response.getString().equals("cancel")) job.cancel();
+                }
+                return done;
+            };
+            if (onThread)
             {
-                Map<String, Integer> report = ((ThreadedAnvilChunkStorageInterface) world.getChunkManager().threadedAnvilChunkStorage).regenerateChunkRegion(requestedChunks);
-                /*for (ChunkPos chpos: requestedChunks) // needed in 1.16 only
+                job.runUntil(finished);
+            }
+            else
+            {
+                // progress is checked once a tick, until the job is done
+                while (!finished.getAsBoolean())
                 {
-                    if (world.getChunk(chpos.x, chpos.z, ChunkStatus.FULL, false) != null)
+                    try
                     {
-                        WorldTools.forceChunkUpdate(chpos.getStartPos(), world);
+                        job.getResult().get(50, TimeUnit.MILLISECONDS);
                     }
-                }*/
-                result[0] = MapValue.wrap(report.entrySet().stream().collect(Collectors.toMap(
-                        e -> new StringValue((String)((Map.Entry) e).getKey()),
-                        e ->  new NumericValue((Integer)((Map.Entry) e).getValue())
-                )));
-            });
-            return result[0];
+                    catch (TimeoutException | ExecutionException ignored)
+                    {
+                    }
+                    catch (InterruptedException exc)
+                    {
+                        job.cancel();
+                        throw new InternalExpressionException("Thread interrupted");
+                    }
+                }
+            }
+            Map<String, Integer> report;
+            try
+            {
+                report = job.getResult().join();
+            }
+            catch (CompletionException exc)
+            {
+                throw new InternalExpressionException("Failed to regenerate chunks: "+exc.getCause());
+            }
+            /*for (ChunkPos chpos: requestedChunks) // needed in 1.16 only
+            {
+                if (world.getChunk(chpos.x, chpos.z, ChunkStatus.FULL, false) != null)
+                {
+                    WorldTools.forceChunkUpdate(chpos.getStartPos(), world);
+                }
+            }*/
+            return MapValue.wrap(report.entrySet().stream().collect(Collectors.toMap(
+                    e -> new StringValue(e.getKey()),
+                    e -> new NumericValue(e.getValue())
+            )));
         });
 
         expression.addContextFunction("inhabited_time", -1, (c, t, lv) ->
@@ -1497,5 +1588,50 @@ public class WorldAccess {
             return new NumericValue(ticket.getExpiryTicks());
         });
 
+        // load_chunks(from_pos, to_pos?, status?, callback?, ...args?)
+        expression.addContextFunction("load_chunks", -1, (c, t, lv) ->
+        {
+            CarpetContext cc = (CarpetContext)c;
+            BlockArgument locator = BlockArgument.findIn(cc, lv, 0);
+            ChunkPos from = new ChunkPos(locator.block.getPos());
+            ChunkPos to = from;
+            int offset = locator.offset;
+            if (lv.size() > offset && !(lv.get(offset) instanceof StringValue) && !(lv.get(offset) instanceof FunctionValue))
+            {
+                locator = BlockArgument.findIn(cc, lv, offset);
+                to = new ChunkPos(locator.block.getPos());
+                offset = locator.offset;
+            }
+            ChunkStatus status = ChunkStatus.FULL;
+            if (lv.size() > offset && !(lv.get(offset) instanceof FunctionValue))
+            {
+                String statusName = lv.get(offset).getString();
+                status = ChunkStatus.byId(statusName);
+                if (!status.getId().equals(statusName)) throw new InternalExpressionException("Unknown chunk status: "+statusName);
+                offset++;
+            }
+            FunctionArgument callback = lv.size() > offset ? FunctionArgument.findIn(c, expression.module, lv, offset, true, false) : null;
+            long count = (long) (Math.abs(to.x - from.x) + 1) * (Math.abs(to.z - from.z) + 1);
+            if (count > MAX_LOADED_CHUNKS)
+                throw new InternalExpressionException("'load_chunks' can load up to "+MAX_LOADED_CHUNKS+" chunks at once, not "+count);
+            List<ChunkPos> chunks = new ArrayList<>((int) count);
+            for (int x = Math.min(from.x, to.x); x <= Math.max(from.x, to.x); x++) for (int z = Math.min(from.z, to.z); z <= Math.max(from.z, to.z); z++)
+                chunks.add(new ChunkPos(x, z));
+            ServerWorld world = cc.s.getWorld();
+            CompletableFuture<Value> loaded = WorldTools.loadChunks(world, chunks, status).<Value>thenApply(NumericValue::new);
+            if (callback != null && callback.function != null)
+            {
+                CarpetEventServer events = ((CarpetScriptHost)c.host).getScriptServer().events;
+                loaded.thenAcceptAsync(loadedCount ->
+                {
+                    List<Value> args = new ArrayList<>();
+                    args.add(loadedCount);
+                    args.addAll(callback.args);
+                    events.scheduleCall(cc, callback.function, args, 0);
+                }, cc.s.getServer());
+            }
+            return new ThreadValue(loaded);
+        });
+
     }
 }
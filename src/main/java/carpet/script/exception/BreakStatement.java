@@ -4,6 +4,9 @@ import carpet.script.value.Value;
 
 public class BreakStatement extends ExitStatement
 {
+    /** break without a value, statements are immutable so it can be thrown from everywhere */
+    public static final BreakStatement EMPTY = new BreakStatement(null);
+
     public BreakStatement(Value value)
     {
         super(value);
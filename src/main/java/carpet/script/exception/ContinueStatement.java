@@ -4,6 +4,9 @@ import carpet.script.value.Value;
 
 public class ContinueStatement extends ExitStatement
 {
+    /** continue without a value, statements are immutable so it can be thrown from everywhere */
+    public static final ContinueStatement EMPTY = new ContinueStatement(null);
+
     public ContinueStatement(Value value)
     {
         super(value);
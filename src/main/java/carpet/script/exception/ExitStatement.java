@@ -8,6 +8,8 @@ public class ExitStatement extends RuntimeException
     public final Value retval;
     public ExitStatement(Value value)
     {
+        // used for control flow only, so skipping the stack trace which is the expensive part of throwing
+        super(null, null, false, false);
         retval = value;
     }
 }
@@ -4,6 +4,8 @@ import carpet.script.value.Value;
 
 public class ReturnStatement extends ExitStatement
 {
+    /** return without a value, statements are immutable so it can be thrown from everywhere */
+    public static final ReturnStatement NULL = new ReturnStatement(Value.NULL);
 
     public ReturnStatement(Value value)
     {
@@ -0,0 +1,17 @@
+package carpet.script.exception;
+
+import carpet.script.value.Value;
+
+import java.util.List;
+
+/* Thrown by a function calling itself as the last thing it does, so the call reuses the frame of the caller */
+public class TailCallStatement extends ExitStatement
+{
+    public final List<Value> args;
+
+    public TailCallStatement(List<Value> args)
+    {
+        super(null);
+        this.args = args;
+    }
+}
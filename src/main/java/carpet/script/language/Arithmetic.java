@@ -27,7 +27,7 @@ public class Arithmetic {
                 {
                     factorial = factorial * i;
                 }
-                return new NumericValue(factorial);
+                return NumericValue.of(factorial);
             }
             else if (number > 170)
             {
@@ -95,7 +95,7 @@ public class Arithmetic {
                 iter++;
             }
             long iFinal = iter;
-            return new NumericValue(iFinal);
+            return NumericValue.of(iFinal);
         });
 
         expression.addFunction("max", (lv) ->
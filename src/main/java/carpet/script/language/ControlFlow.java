@@ -114,9 +114,9 @@ public class ControlFlow {
                                 NumericValue.of(f.getToken().linepos+1)
                         )).collect(Collectors.toList())),
 
-                        StringValue.of("locals"), MapValue.wrap(ret.context.variables.entrySet().stream().filter(e -> !e.getKey().equals("_trace")).collect(Collectors.toMap(
-                                e -> StringValue.of(e.getKey()),
-                                e -> e.getValue().evalValue(ret.context)
+                        StringValue.of("locals"), MapValue.wrap(ret.context.getAllVariableNames().stream().filter(n -> !n.equals("_trace")).collect(Collectors.toMap(
+                                StringValue::of,
+                                n -> ret.context.getVariable(n).evalValue(ret.context)
                         ))),
                         StringValue.of("token"), ListValue.of(
                                 StringValue.of(ret.token.surface),
@@ -3,15 +3,18 @@ package carpet.script.language;
 import carpet.script.Context;
 import carpet.script.Expression;
 import carpet.script.Fluff;
+import carpet.script.FunctionCallSite;
 import carpet.script.LazyValue;
 import carpet.script.Tokenizer;
 import carpet.script.argument.FunctionArgument;
 import carpet.script.exception.InternalExpressionException;
 import carpet.script.exception.ReturnStatement;
+import carpet.script.exception.TailCallStatement;
 import carpet.script.value.FunctionSignatureValue;
 import carpet.script.value.FunctionValue;
 import carpet.script.value.FunctionAnnotationValue;
 import carpet.script.value.ListValue;
+import carpet.script.value.NumericValue;
 import carpet.script.value.StringValue;
 import carpet.script.value.Value;
 
@@ -49,8 +52,13 @@ public class Functions {
                 if (t != Context.SIGNATURE) // just call the function
                 {
                     List<Value> args = Fluff.AbstractFunction.unpackLazy(lv, c, Context.NONE);
+                    FunctionCallSite site = lv.get(0) instanceof FunctionCallSite ? (FunctionCallSite) lv.get(0) : null;
+                    if (site != null)
+                        args.set(0, site.resolve(c, expression.module));
                     FunctionArgument functionArgument = FunctionArgument.findIn(c, expression.module, args, 0, false, true);
                     FunctionValue fun = functionArgument.function;
+                    if (site != null && site.isTailCallOf(fun))
+                        throw new TailCallStatement(functionArgument.args);
                     return fun.callInContext(c, t, functionArgument.args);
                 }
                 // gimme signature
@@ -129,6 +137,17 @@ public class Functions {
             return (cc, tt) -> result;
         });
 
-        expression.addImpureFunction("return", (lv) -> { throw new ReturnStatement(lv.size()==0?Value.NULL:lv.get(0));} );
+        // keeps results of functions which depend only on their arguments
+        expression.addContextFunction("memoize", -1, (c, t, lv) ->
+        {
+            if (lv.size() < 1 || lv.size() > 2)
+                throw new InternalExpressionException("'memoize' requires a function and optionally a maximum number of results to remember");
+            FunctionValue fun = FunctionArgument.findIn(c, expression.module, lv.subList(0, 1), 0, false, false).function;
+            long size = lv.size() > 1 ? NumericValue.asNumber(lv.get(1)).getLong() : 1024;
+            fun.memoize(c, (int) Math.min(size, Integer.MAX_VALUE));
+            return fun;
+        });
+
+        expression.addImpureFunction("return", (lv) -> { throw lv.size()==0 ? ReturnStatement.NULL : new ReturnStatement(lv.get(0));} );
     }
 }
@@ -23,14 +23,14 @@ public class Loops {
         // while(cond, limit, expr) => ??
         expression.addImpureFunction("break", lv ->
         {
-            if (lv.size()==0) throw new BreakStatement(null);
+            if (lv.size()==0) throw BreakStatement.EMPTY;
             if (lv.size()==1) throw new BreakStatement(lv.get(0));
             throw new InternalExpressionException("'break' can only be called with zero or one argument");
         });
 
         expression.addImpureFunction("continue", lv ->
         {
-            if (lv.size()==0) throw new ContinueStatement(null);
+            if (lv.size()==0) throw ContinueStatement.EMPTY;
             if (lv.size()==1) throw new ContinueStatement(lv.get(0));
             throw new InternalExpressionException("'continue' can only be called with zero or one argument");
         });
@@ -48,6 +48,7 @@ public class Loops {
             c.setVariable("_",(cc, tt) -> new NumericValue(0).bindTo("_"));
             while (i<limit && condition.evalValue(c, Context.BOOLEAN).getBoolean() )
             {
+                c.host.checkBudget(c);
                 try
                 {
                     lastOne = expr.evalValue(c, t);
@@ -78,6 +79,7 @@ public class Loops {
             LazyValue _val = c.getVariable("_");
             for (long i=0; i < limit; i++)
             {
+                c.host.checkBudget(c);
                 long whyYouAsk = i;
                 c.setVariable("_", (cc, tt) -> new NumericValue(whyYouAsk).bindTo("_"));
                 try
@@ -112,11 +114,13 @@ public class Loops {
             List<Value> result = new ArrayList<>();
             for (int i=0; iterator.hasNext(); i++)
             {
+                c.host.checkBudget(c);
                 Value next = iterator.next();
                 String var = next.boundVariable;
-                next.bindTo("_");
+                // shared values get bound as copies, keeping their own name untouched
+                Value bound = next.bindTo("_");
                 int doYouReally = i;
-                c.setVariable("_", (cc, tt) -> next);
+                c.setVariable("_", (cc, tt) -> bound);
                 c.setVariable("_i", (cc, tt) -> new NumericValue(doYouReally).bindTo("_i"));
                 try
                 {
@@ -127,11 +131,11 @@ public class Loops {
                     if (stmt.retval != null) result.add(stmt.retval);
                     if (stmt instanceof BreakStatement)
                     {
-                        next.boundVariable = var;
+                        if (bound == next) next.boundVariable = var;
                         break;
                     }
                 }
-                next.boundVariable = var;
+                if (bound == next) next.boundVariable = var;
             }
             ((AbstractListValue) rval).fatality();
             Value ret = ListValue.wrap(result);
@@ -158,11 +162,12 @@ public class Loops {
             List<Value> result = new ArrayList<>();
             for (int i=0; iterator.hasNext(); i++)
             {
+                c.host.checkBudget(c);
                 Value next = iterator.next();
                 String var = next.boundVariable;
-                next.bindTo("_");
+                Value bound = next.bindTo("_");
                 int seriously = i;
-                c.setVariable("_", (cc, tt) -> next);
+                c.setVariable("_", (cc, tt) -> bound);
                 c.setVariable("_i", (cc, tt) -> new NumericValue(seriously).bindTo("_i"));
                 try
                 {
@@ -174,11 +179,11 @@ public class Loops {
                     if (stmt.retval != null && stmt.retval.getBoolean()) result.add(next);
                     if (stmt instanceof BreakStatement)
                     {
-                        next.boundVariable = var;
+                        if (bound == next) next.boundVariable = var;
                         break;
                     }
                 }
-                next.boundVariable = var;
+                if (bound == next) next.boundVariable = var;
             }
             ((AbstractListValue) rval).fatality();
             Value ret = ListValue.wrap(result);
@@ -206,32 +211,33 @@ public class Loops {
             Value result = Value.NULL;
             for (int i=0; iterator.hasNext(); i++)
             {
+                c.host.checkBudget(c);
                 Value next = iterator.next();
                 String var = next.boundVariable;
-                next.bindTo("_");
+                Value bound = next.bindTo("_");
                 int seriously = i;
-                c.setVariable("_", (cc, tt) -> next);
+                c.setVariable("_", (cc, tt) -> bound);
                 c.setVariable("_i", (cc, tt) -> new NumericValue(seriously).bindTo("_i"));
                 try
                 {
                     if(expr.evalValue(c, Context.BOOLEAN).getBoolean())
                     {
                         result = next;
-                        next.boundVariable = var;
+                        if (bound == next) next.boundVariable = var;
                         break;
                     }
                 }
                 catch (BreakStatement  stmt)
                 {
                     result = stmt.retval == null? next : stmt.retval;
-                    next.boundVariable = var;
+                    if (bound == next) next.boundVariable = var;
                     break;
                 }
                 catch (ContinueStatement ignored)
                 {
                     throw new InternalExpressionException("'continue' inside 'first' function has no sense");
                 }
-                next.boundVariable = var;
+                if (bound == next) next.boundVariable = var;
             }
             //revering scope
             ((AbstractListValue) rval).fatality();
@@ -258,19 +264,20 @@ public class Loops {
             LazyValue result = LazyValue.TRUE;
             for (int i=0; iterator.hasNext(); i++)
             {
+                c.host.checkBudget(c);
                 Value next = iterator.next();
                 String var = next.boundVariable;
-                next.bindTo("_");
+                Value bound = next.bindTo("_");
                 int seriously = i;
-                c.setVariable("_", (cc, tt) -> next);
+                c.setVariable("_", (cc, tt) -> bound);
                 c.setVariable("_i", (cc, tt) -> new NumericValue(seriously).bindTo("_i"));
                 if(!expr.evalValue(c, Context.BOOLEAN).getBoolean())
                 {
                     result = LazyValue.FALSE;
-                    next.boundVariable = var;
+                    if (bound == next) next.boundVariable = var;
                     break;
                 }
-                next.boundVariable = var;
+                if (bound == next) next.boundVariable = var;
             }
             //revering scope
             ((AbstractListValue) rval).fatality();
@@ -289,6 +296,7 @@ public class Loops {
             int iterations = 0;
             for (initial.evalValue(c, Context.VOID); condition.evalValue(c, Context.BOOLEAN).getBoolean(); increment.evalValue(c, Context.VOID))
             {
+                c.host.checkBudget(c);
                 try
                 {
                     body.evalValue(c, Context.VOID);
@@ -323,11 +331,12 @@ public class Loops {
             int successCount = 0;
             for (int i=0; iterator.hasNext(); i++)
             {
+                c.host.checkBudget(c);
                 Value next = iterator.next();
                 String var = next.boundVariable;
-                next.bindTo("_");
+                Value bound = next.bindTo("_");
                 int seriously = i;
-                c.setVariable("_", (cc, tt) -> next);
+                c.setVariable("_", (cc, tt) -> bound);
                 c.setVariable("_i", (cc, tt) -> new NumericValue(seriously).bindTo("_i"));
                 Value result = Value.FALSE;
                 try
@@ -339,13 +348,13 @@ public class Loops {
                     if (stmt.retval != null) result = stmt.retval;
                     if (stmt instanceof BreakStatement)
                     {
-                        next.boundVariable = var;
+                        if (bound == next) next.boundVariable = var;
                         break;
                     }
                 }
                 if(t != Context.VOID && result.getBoolean())
                     successCount++;
-                next.boundVariable = var;
+                if (bound == next) next.boundVariable = var;
             }
             //revering scope
             ((AbstractListValue) rval).fatality();
@@ -384,13 +393,14 @@ public class Loops {
 
             for (int i=0; iterator.hasNext(); i++)
             {
+                c.host.checkBudget(c);
                 Value next = iterator.next();
                 String var = next.boundVariable;
-                next.bindTo("_");
+                Value bound = next.bindTo("_");
                 Value promiseWontChangeYou = acc;
                 int seriously = i;
                 c.setVariable("_a", (cc, tt) -> promiseWontChangeYou.bindTo("_a"));
-                c.setVariable("_", (cc, tt) -> next);
+                c.setVariable("_", (cc, tt) -> bound);
                 c.setVariable("_i", (cc, tt) -> new NumericValue(seriously).bindTo("_i"));
                 try
                 {
@@ -401,11 +411,11 @@ public class Loops {
                     if (stmt.retval != null) acc = stmt.retval;
                     if (stmt instanceof BreakStatement)
                     {
-                        next.boundVariable = var;
+                        if (bound == next) next.boundVariable = var;
                         break;
                     }
                 }
-                next.boundVariable = var;
+                if (bound == next) next.boundVariable = var;
             }
             //reverting scope
             ((AbstractListValue) rval).fatality();
@@ -89,7 +89,7 @@ public class Operators {
             if (size == 0) return Value.NULL;
             long accumulator = NumericValue.asNumber(lv.get(0)).getLong();
             for (Value v: lv.subList(1, size)) accumulator = accumulator & NumericValue.asNumber(v).getLong();
-            return new NumericValue(accumulator);
+            return NumericValue.of(accumulator);
         });
 
         expression.addFunction("bitwise_xor", lv -> {
@@ -97,7 +97,7 @@ public class Operators {
             if (size == 0) return Value.NULL;
             long accumulator = NumericValue.asNumber(lv.get(0)).getLong();
             for (Value v: lv.subList(1, size)) accumulator = accumulator ^ NumericValue.asNumber(v).getLong();
-            return new NumericValue(accumulator);
+            return NumericValue.of(accumulator);
         });
 
         expression.addFunction("bitwise_or", lv -> {
@@ -105,7 +105,7 @@ public class Operators {
             if (size == 0) return Value.NULL;
             long accumulator = NumericValue.asNumber(lv.get(0)).getLong();
             for (Value v: lv.subList(1, size)) accumulator = accumulator | NumericValue.asNumber(v).getLong();
-            return new NumericValue(accumulator);
+            return NumericValue.of(accumulator);
         });
 
         // lazy cause RHS is only conditional
@@ -5,6 +5,8 @@ import carpet.script.argument.FunctionArgument;
 import carpet.script.exception.ExitStatement;
 import carpet.script.exception.InternalExpressionException;
 import carpet.script.value.BooleanValue;
+import carpet.script.value.GeneratorValue;
+import carpet.script.value.MapValue;
 import carpet.script.value.NumericValue;
 import carpet.script.value.ThreadValue;
 import carpet.script.value.Value;
@@ -35,9 +37,45 @@ public class Threading
         });
 
 
+        expression.addFunctionWithDelegation("generator", -1, false, false, (c, t, expr, tok, lv) ->
+        {
+            if (lv.size() == 0)
+                throw new InternalExpressionException("'generator' requires at least function to call as a parameter");
+            FunctionArgument functionArgument = FunctionArgument.findIn(c, expression.module, lv, 0, false, true);
+            return new GeneratorValue(functionArgument.function, c, functionArgument.checkedArgs());
+        });
+
+        expression.addImpureFunction("yield", (lv) ->
+        {
+            GeneratorValue.yieldValue(lv.isEmpty() ? Value.NULL : lv.get(0));
+            return Value.NULL;
+        });
+
+        expression.addUnaryFunction("generator_next", (v) ->
+        {
+            if (!(v instanceof GeneratorValue))
+                throw new InternalExpressionException("'generator_next' could only be used with a generator");
+            return ((GeneratorValue) v).next();
+        });
+
+        expression.addUnaryFunction("generator_close", (v) ->
+        {
+            if (!(v instanceof GeneratorValue))
+                throw new InternalExpressionException("'generator_close' could only be used with a generator");
+            ((GeneratorValue) v).close();
+            return Value.NULL;
+        });
+
         expression.addContextFunction("task_count", -1, (c, t, lv) ->
                 (lv.size() > 0)? new NumericValue(c.host.taskCount(lv.get(0))):new NumericValue(c.host.taskCount()));
 
+        expression.addContextFunction("task_pool_stats", -1, (c, t, lv) ->
+        {
+            if (lv.size() == 0) return MapValue.wrap(c.host.getExecutorStats());
+            Value stats = c.host.getExecutorStats().get(lv.get(0));
+            return stats == null ? Value.NULL : stats;
+        });
+
         expression.addUnaryFunction("task_value", (v) ->
         {
             if (!(v instanceof ThreadValue))
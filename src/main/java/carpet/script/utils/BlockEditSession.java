@@ -0,0 +1,176 @@
+package carpet.script.utils;
+
+import carpet.CarpetSettings;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Clearable;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.chunk.light.LightingProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Block changes applied together, a chunk section at a time. Blocks without block entities are written directly
+ * to chunk sections, skipping the work vanilla does for each block. Lighting, neighbour updates and packets to
+ * players watching the chunks are handled for all of them at once, after all blocks are in place.
+ * Neighbour and shape updates follow the fillUpdates rule, and are skipped within without_updates.
+ */
+public class BlockEditSession
+{
+    private static final Heightmap.Type[] HEIGHTMAPS = {
+            Heightmap.Type.MOTION_BLOCKING, Heightmap.Type.MOTION_BLOCKING_NO_LEAVES, Heightmap.Type.OCEAN_FLOOR, Heightmap.Type.WORLD_SURFACE
+    };
+
+    private static class Change
+    {
+        final BlockPos pos;
+        final BlockState state;
+        final NbtCompound data;
+        BlockState previous;
+
+        Change(BlockPos pos, BlockState state, NbtCompound data)
+        {
+            this.pos = pos;
+            this.state = state;
+            this.data = data;
+        }
+    }
+
+    private final ServerWorld world;
+    // changes by section, in the order sections were first changed
+    private final Long2ObjectLinkedOpenHashMap<List<Change>> sections = new Long2ObjectLinkedOpenHashMap<>();
+    private int size = 0;
+
+    public BlockEditSession(ServerWorld world)
+    {
+        this.world = world;
+    }
+
+    public void add(BlockPos pos, BlockState state, NbtCompound data)
+    {
+        BlockPos immutable = pos.toImmutable();
+        sections.computeIfAbsent(ChunkSectionPos.toLong(immutable), s -> new ArrayList<>()).add(new Change(immutable, state, data));
+        size++;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Applies all changes, needs to run on the main thread
+     * @return number of blocks that changed
+     */
+    public int commit()
+    {
+        boolean updates = CarpetSettings.fillUpdates && !CarpetSettings.impendingFillSkipUpdates.get();
+        LightingProvider lighting = world.getChunkManager().getLightingProvider();
+        List<Change> changed = new ArrayList<>(size);
+        List<Change> all = new ArrayList<>(size);
+        for (Long2ObjectMap.Entry<List<Change>> entry : sections.long2ObjectEntrySet())
+        {
+            ChunkSectionPos sectionPos = ChunkSectionPos.from(entry.getLongKey());
+            if (world.isOutOfHeightLimit(sectionPos.getMinY())) continue;
+            WorldChunk chunk = world.getChunk(sectionPos.getSectionX(), sectionPos.getSectionZ());
+            int index = world.sectionCoordToIndex(sectionPos.getSectionY());
+            ChunkSection[] sectionArray = chunk.getSectionArray();
+            ChunkSection section = sectionArray[index];
+            boolean wasEmpty = ChunkSection.isEmpty(section);
+            for (Change change : entry.getValue())
+            {
+                BlockPos pos = change.pos;
+                BlockState current = section == WorldChunk.EMPTY_SECTION ? chunk.getBlockState(pos) : section.getBlockState(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15);
+                if (current == change.state && change.data == null) continue;
+                change.previous = current;
+                all.add(change);
+                if (current.hasBlockEntity() || change.state.hasBlockEntity() || change.data != null)
+                {
+                    // block entities need the full vanilla treatment
+                    setWithBlockEntity(change, updates);
+                    section = sectionArray[index];
+                    continue;
+                }
+                if (section == WorldChunk.EMPTY_SECTION)
+                {
+                    // missing sections are all air, so the new block isn't
+                    section = new ChunkSection(sectionPos.getSectionY());
+                    sectionArray[index] = section;
+                }
+                section.setBlockState(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, change.state);
+                for (Heightmap.Type type : HEIGHTMAPS)
+                    chunk.getHeightmap(type).trackUpdate(pos.getX() & 15, pos.getY(), pos.getZ() & 15, change.state);
+                changed.add(change);
+            }
+            boolean isEmpty = ChunkSection.isEmpty(section);
+            if (wasEmpty != isEmpty) lighting.setSectionStatus(sectionPos, isEmpty);
+            chunk.setShouldSave(true);
+        }
+        for (Change change : changed)
+        {
+            BlockPos pos = change.pos;
+            BlockState previous = change.previous;
+            BlockState state = change.state;
+            if (state.getOpacity(world, pos) != previous.getOpacity(world, pos)
+                    || state.getLuminance() != previous.getLuminance()
+                    || state.hasSidedTransparency() || previous.hasSidedTransparency())
+                lighting.checkBlock(pos);
+            world.onBlockChanged(pos, previous, state);
+            // players get one packet per changed section
+            world.getChunkManager().markForUpdate(pos);
+        }
+        // same updates as setting blocks one by one would do, in the same order, once all blocks are set
+        if (updates) for (Change change : changed)
+        {
+            BlockPos pos = change.pos;
+            change.previous.onStateReplaced(world, pos, change.state, false);
+            change.state.onBlockAdded(world, pos, change.previous, false);
+            change.previous.prepare(world, pos, 2);
+            change.state.updateNeighbors(world, pos, 2);
+            change.state.prepare(world, pos, 2);
+        }
+        // and block updates once everything is in place, like fill does
+        if (updates) for (Change change : all) world.updateNeighbors(change.pos, change.state.getBlock());
+        sections.clear();
+        size = 0;
+        return all.size();
+    }
+
+    private void setWithBlockEntity(Change change, boolean updates)
+    {
+        BlockPos pos = change.pos;
+        boolean previous = CarpetSettings.impendingFillSkipUpdates.get();
+        try
+        {
+            if (!updates) CarpetSettings.impendingFillSkipUpdates.set(true);
+            Clearable.clear(world.getBlockEntity(pos));
+            world.setBlockState(pos, change.state, 2);
+        }
+        finally
+        {
+            CarpetSettings.impendingFillSkipUpdates.set(previous);
+        }
+        if (change.data != null)
+        {
+            BlockEntity be = world.getBlockEntity(pos);
+            if (be != null)
+            {
+                NbtCompound destTag = change.data.copy();
+                destTag.putInt("x", pos.getX());
+                destTag.putInt("y", pos.getY());
+                destTag.putInt("z", pos.getZ());
+                be.readNbt(destTag);
+                be.markDirty();
+            }
+        }
+    }
+}
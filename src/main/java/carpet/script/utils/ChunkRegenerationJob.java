@@ -0,0 +1,183 @@
+package carpet.script.utils;
+
+import carpet.fakes.ThreadedAnvilChunkStorageInterface;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Regeneration of chunks running in the background, a batch of chunks at a time, so only a few of them are
+ * generated at once. Its work on the main thread takes no more than a few milliseconds each tick, unless
+ * the main thread waits for it, and it can be cancelled between batches. Reports of all batches add up to
+ * the same report regenerating all chunks at once gives.
+ */
+public class ChunkRegenerationJob implements Executor
+{
+    public static final int BATCH = 16;
+    public static final long TICK_BUDGET_NANOS = 10_000_000L;
+    // batches are squares of chunks, which share more of their neighbours than rows of chunks do
+    private static final Comparator<ChunkPos> TILES = Comparator.<ChunkPos>comparingInt(p -> p.x >> 2)
+            .thenComparingInt(p -> p.z >> 2).thenComparingInt(p -> p.x).thenComparingInt(p -> p.z);
+
+    private final MinecraftServer server;
+    private final ThreadedAnvilChunkStorageInterface storage;
+    private final Executor mainThread;
+    private final List<ChunkPos> chunks;
+    private final long budget;
+    // only accessed on the main thread
+    private final Object2IntMap<String> report = new Object2IntOpenHashMap<>();
+    private final CompletableFuture<Map<String, Integer>> result = new CompletableFuture<>();
+    private final Queue<Runnable> steps = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean cancelled = false;
+    private volatile int processed = 0;
+    private int next = 0;
+    private int tick = -1;
+    private long spent = 0L;
+
+    /**
+     * @param budget nanoseconds of main thread time the job takes each tick, 0 for the main thread waiting for it
+     */
+    public ChunkRegenerationJob(ServerWorld world, List<ChunkPos> requestedChunks, long budget)
+    {
+        this.server = world.getServer();
+        this.storage = (ThreadedAnvilChunkStorageInterface) world.getChunkManager().threadedAnvilChunkStorage;
+        // the main thread waiting for the job only runs chunk tasks, so steps of the job need to be among them
+        this.mainThread = budget == 0L ? storage.getMainThreadExecutorCM() : server;
+        this.chunks = new ArrayList<>(new LinkedHashSet<>(requestedChunks));
+        this.chunks.sort(TILES);
+        this.budget = budget;
+    }
+
+    public CompletableFuture<Map<String, Integer>> start()
+    {
+        execute(this::nextBatch);
+        return result;
+    }
+
+    /**
+     * Stops the job once the batch it works on is done, leaving the rest of the chunks as they are
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public boolean isDone()
+    {
+        return result.isDone();
+    }
+
+    public CompletableFuture<Map<String, Integer>> getResult()
+    {
+        return result;
+    }
+
+    /**
+     * Runs chunk tasks on the main thread until the condition is met, for jobs the main thread waits for
+     */
+    public void runUntil(BooleanSupplier done)
+    {
+        storage.getMainThreadExecutorCM().runTasks(done);
+    }
+
+    /**
+     * @return number of requested chunks that are done
+     */
+    public int processed()
+    {
+        return processed;
+    }
+
+    public int total()
+    {
+        return chunks.size();
+    }
+
+    private void nextBatch()
+    {
+        if (cancelled || next >= chunks.size())
+        {
+            result.complete(new Object2IntOpenHashMap<>(report));
+            return;
+        }
+        List<ChunkPos> batch = chunks.subList(next, Math.min(next + BATCH, chunks.size()));
+        next += batch.size();
+        storage.regenerateChunkRegion(batch, this).whenComplete((batchReport, exc) -> execute(() ->
+        {
+            if (exc != null)
+            {
+                result.completeExceptionally(exc);
+                return;
+            }
+            // times of batches add up, like times of layers do
+            batchReport.forEach((key, value) -> report.mergeInt(key, value, Integer::sum));
+            processed = next;
+            nextBatch();
+        }));
+    }
+
+    /**
+     * Runs a step of the job on the main thread, in this tick if it has some budget left, or the next one
+     */
+    @Override
+    public void execute(Runnable step)
+    {
+        steps.add(step);
+        schedule();
+    }
+
+    /**
+     * Resumes steps that were over the budget of the previous tick
+     */
+    public void tick()
+    {
+        if (!steps.isEmpty()) schedule();
+    }
+
+    private void schedule()
+    {
+        if (scheduled.compareAndSet(false, true)) mainThread.execute(this::drain);
+    }
+
+    private void drain()
+    {
+        if (server.getTicks() != tick)
+        {
+            tick = server.getTicks();
+            spent = 0L;
+        }
+        while (budget == 0L || spent < budget)
+        {
+            Runnable step = steps.poll();
+            if (step == null) break;
+            long start = System.nanoTime();
+            try
+            {
+                step.run();
+            }
+            catch (RuntimeException exc)
+            {
+                result.completeExceptionally(exc);
+            }
+            spent += System.nanoTime() - start;
+        }
+        scheduled.set(false);
+        // steps over the budget wait for the next tick
+        if (!steps.isEmpty() && (budget == 0L || spent < budget)) schedule();
+    }
+}
@@ -0,0 +1,161 @@
+package carpet.script.utils;
+
+import com.mojang.brigadier.StringReader;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.command.EntitySelector;
+import net.minecraft.command.EntitySelectorReader;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityType;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.TypeFilter;
+import net.minecraft.util.math.Box;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.util.registry.Registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * Parsed entity selectors, shared by all apps and threads, keeping the ones used most recently.
+ * Selectors for all players, and for entities of a type within a distance, are answered straight from
+ * the player list and the entity index of the world, giving the same entities in the same order vanilla selectors do.
+ */
+public class EntitySelectorCache
+{
+    private static final int SELECTORS = 512;
+    private static final TypeFilter<Entity, Entity> ANY_ENTITY = TypeFilter.instanceOf(Entity.class);
+
+    @FunctionalInterface
+    private interface Selection
+    {
+        Collection<? extends Entity> select(ServerCommandSource source) throws CommandSyntaxException;
+    }
+
+    private static final Map<String, Selection> selections = new LinkedHashMap<String, Selection>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Selection> eldest)
+        {
+            return size() > SELECTORS;
+        }
+    };
+    // guarded by selections
+    private static long hits = 0L;
+    private static long misses = 0L;
+
+    public static Collection<? extends Entity> getEntities(ServerCommandSource source, String selector) throws CommandSyntaxException
+    {
+        Selection selection;
+        synchronized (selections)
+        {
+            selection = selections.get(selector);
+            if (selection != null) hits++;
+            else misses++;
+        }
+        if (selection == null)
+        {
+            // parsing happens outside of the lock, so threads parsing the same selector at once just parse it twice
+            selection = simpleSelection(selector);
+            if (selection == null)
+            {
+                EntitySelector entitySelector = new EntitySelectorReader(new StringReader(selector), true).read();
+                selection = s -> entitySelector.getEntities(s.withMaxLevel(4));
+            }
+            synchronized (selections)
+            {
+                selections.put(selector, selection);
+            }
+        }
+        return selection.select(source);
+    }
+
+    public static long hits()
+    {
+        synchronized (selections)
+        {
+            return hits;
+        }
+    }
+
+    public static long misses()
+    {
+        synchronized (selections)
+        {
+            return misses;
+        }
+    }
+
+    public static int size()
+    {
+        synchronized (selections)
+        {
+            return selections.size();
+        }
+    }
+
+    /**
+     * @return selection of '@a', or '@e' with a range and an optional type, or null for anything else
+     */
+    private static Selection simpleSelection(String selector)
+    {
+        if (selector.equals("@a"))
+            return source -> new ArrayList<>(source.getServer().getPlayerManager().getPlayerList());
+        if (!selector.startsWith("@e[") || !selector.endsWith("]")) return null;
+        EntityType<?> type = null;
+        double range = -1.0;
+        for (String option : selector.substring(3, selector.length() - 1).split(",", -1))
+        {
+            int separator = option.indexOf('=');
+            if (separator < 0) return null;
+            String key = option.substring(0, separator).trim();
+            String value = option.substring(separator + 1).trim();
+            if (key.equals("type") && type == null)
+            {
+                Identifier id = Identifier.tryParse(value);
+                if (id == null) return null;
+                Optional<EntityType<?>> entityType = Registry.ENTITY_TYPE.getOrEmpty(id);
+                // players come from the player list, and unknown types are left to vanilla to report
+                if (entityType.isEmpty() || entityType.get() == EntityType.PLAYER) return null;
+                type = entityType.get();
+            }
+            else if (key.equals("distance") && range < 0.0 && value.startsWith(".."))
+            {
+                try
+                {
+                    range = Double.parseDouble(value.substring(2));
+                }
+                catch (NumberFormatException ignored)
+                {
+                    return null;
+                }
+                if (!(range >= 0.0) || Double.isInfinite(range)) return null;
+            }
+            else
+            {
+                return null;
+            }
+        }
+        // without a range vanilla looks in all worlds
+        if (range < 0.0) return null;
+        return entitiesInRange(type, range);
+    }
+
+    private static Selection entitiesInRange(EntityType<?> type, double range)
+    {
+        TypeFilter<Entity, ? extends Entity> filter = type == null ? ANY_ENTITY : type;
+        double rangeSq = range * range;
+        return source ->
+        {
+            Vec3d pos = source.getPosition();
+            // same box vanilla searches in for a distance
+            Box box = new Box(-range, -range, -range, range + 1.0, range + 1.0, range + 1.0).offset(pos);
+            Predicate<Entity> predicate = e -> e.isAlive() && e.squaredDistanceTo(pos) <= rangeSq;
+            return new ArrayList<Entity>(source.getWorld().getEntitiesByType(filter, box, predicate));
+        };
+    }
+}
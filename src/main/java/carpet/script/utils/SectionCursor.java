@@ -0,0 +1,47 @@
+package carpet.script.utils;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+
+/**
+ * Reads block states of a world keeping the last chunk section it read from, so reading nearby blocks
+ * one after another looks up the chunk once per section instead of once per block, like world.getBlockState does.
+ */
+public class SectionCursor
+{
+    private static final BlockState AIR = Blocks.AIR.getDefaultState();
+    private static final BlockState VOID_AIR = Blocks.VOID_AIR.getDefaultState();
+
+    private final ServerWorld world;
+    private long sectionKey = Long.MAX_VALUE;
+    private ChunkSection[] sections = null;
+    private int index = 0;
+    private long time = 0L;
+
+    public SectionCursor(ServerWorld world)
+    {
+        this.world = world;
+    }
+
+    public BlockState getBlockState(int x, int y, int z)
+    {
+        if (world.isOutOfHeightLimit(y)) return VOID_AIR;
+        long key = ChunkSectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        // chunks may unload between ticks, so they are looked up again once a tick passes
+        if (key != sectionKey || time != world.getTime())
+        {
+            time = world.getTime();
+            sections = world.getChunk(x >> 4, z >> 4).getSectionArray();
+            index = world.getSectionIndex(y);
+            sectionKey = key;
+        }
+        // missing sections get created once blocks are set there, so they are not kept
+        ChunkSection section = sections[index];
+        if (section == WorldChunk.EMPTY_SECTION) return AIR;
+        return section.getBlockState(x & 15, y & 15, z & 15);
+    }
+}
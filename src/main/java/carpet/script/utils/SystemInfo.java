@@ -208,6 +208,11 @@ public class SystemInfo {
         });
         
         put("scarpet_version", c -> StringValue.of(CarpetSettings.carpetVersion));
+        put("scarpet_selector_cache", c -> MapValue.wrap(Map.of(
+                StringValue.of("hits"), new NumericValue(EntitySelectorCache.hits()),
+                StringValue.of("misses"), new NumericValue(EntitySelectorCache.misses()),
+                StringValue.of("size"), new NumericValue(EntitySelectorCache.size())
+        )));
 
     }};
     public static Value get(String what, CarpetContext cc)
@@ -0,0 +1,210 @@
+package carpet.script.utils;
+
+import carpet.script.exception.InternalExpressionException;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.registry.RegistryKey;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.ChunkStatus;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Copy of block states in a box of a world, taken on the main thread, which any thread can read
+ * while the world changes. Only chunks that are loaded get copied, without loading or generating others.
+ * Large copies are taken in parts of whole chunks, so they may come from different ticks. Each chunk section
+ * is kept as its own palette of states and indices to it, like the game keeps them, so a copy takes up to
+ * 8kB per section. Reading the copy can be split between threads a section at a time.
+ */
+public class WorldSnapshot
+{
+    private static final int MAX_SECTIONS = 16384;
+    private static final int SECTIONS_PER_PART = 1024;
+    private static final BlockState AIR = Blocks.AIR.getDefaultState();
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool ->
+    {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("Scarpet snapshot worker #"+thread.getPoolIndex());
+        return thread;
+    }, null, false);
+
+    public static class Section
+    {
+        public final int x;
+        public final int y;
+        public final int z;
+        public final BlockState[] palette;
+        // null for sections with a single state
+        private final short[] data;
+
+        private Section(int x, int y, int z, BlockState[] palette, short[] data)
+        {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.palette = palette;
+            this.data = data;
+        }
+
+        public BlockState get(int x, int y, int z)
+        {
+            if (data == null) return palette[0];
+            return palette[data[((y & 15) << 8) | ((z & 15) << 4) | (x & 15)]];
+        }
+    }
+
+    public final RegistryKey<World> dimension;
+    public final int minx, miny, minz, maxx, maxy, maxz;
+    private final int sectionsX, sectionsY, sectionsZ;
+    // null for sections of chunks that weren't loaded, or weren't copied yet
+    private final Section[] sections;
+
+    private WorldSnapshot(ServerWorld world, int minx, int miny, int minz, int maxx, int maxy, int maxz)
+    {
+        this.dimension = world.getRegistryKey();
+        this.minx = minx;
+        this.miny = miny;
+        this.minz = minz;
+        this.maxx = maxx;
+        this.maxy = maxy;
+        this.maxz = maxz;
+        sectionsX = (maxx >> 4) - (minx >> 4) + 1;
+        sectionsY = (maxy >> 4) - (miny >> 4) + 1;
+        sectionsZ = (maxz >> 4) - (minz >> 4) + 1;
+        sections = new Section[sectionsX * sectionsY * sectionsZ];
+    }
+
+    /**
+     * Creates an empty snapshot of the box, to be filled with {@link #copyPart(ServerWorld, int)}
+     */
+    public static WorldSnapshot of(ServerWorld world, BlockPos from, BlockPos to)
+    {
+        int miny = Math.max(Math.min(from.getY(), to.getY()), world.getBottomY());
+        int maxy = Math.min(Math.max(from.getY(), to.getY()), world.getTopY() - 1);
+        if (miny > maxy) throw new InternalExpressionException("Snapshot area is outside of the world");
+        WorldSnapshot snapshot = new WorldSnapshot(world,
+                Math.min(from.getX(), to.getX()), miny, Math.min(from.getZ(), to.getZ()),
+                Math.max(from.getX(), to.getX()), maxy, Math.max(from.getZ(), to.getZ())
+        );
+        if ((long) snapshot.sectionsX * snapshot.sectionsY * snapshot.sectionsZ > MAX_SECTIONS)
+            throw new InternalExpressionException("Snapshot area is too large, it would have more than "+MAX_SECTIONS+" chunk sections");
+        return snapshot;
+    }
+
+    /**
+     * Copies the blocks of loaded chunks, starting with the given chunk of the box, until it copied enough
+     * sections for one part. Needs to run on the main thread.
+     * @return index of the chunk to continue from, or -1 once all chunks are done
+     */
+    public int copyPart(ServerWorld world, int chunk)
+    {
+        int chunks = sectionsX * sectionsZ;
+        int copied = 0;
+        for (; chunk < chunks && copied < SECTIONS_PER_PART; chunk++)
+        {
+            int sx = (minx >> 4) + chunk / sectionsZ;
+            int sz = (minz >> 4) + chunk % sectionsZ;
+            WorldChunk worldChunk = (WorldChunk) world.getChunk(sx, sz, ChunkStatus.FULL, false);
+            if (worldChunk == null) continue;
+            ChunkSection[] chunkSections = worldChunk.getSectionArray();
+            int index = chunk * sectionsY;
+            for (int sy = miny >> 4; sy <= maxy >> 4; sy++)
+                sections[index++] = copy(sx, sy, sz, chunkSections[world.sectionCoordToIndex(sy)]);
+            copied += sectionsY;
+        }
+        return chunk < chunks ? chunk : -1;
+    }
+
+    private static Section copy(int sx, int sy, int sz, ChunkSection section)
+    {
+        if (section == WorldChunk.EMPTY_SECTION) return new Section(sx, sy, sz, new BlockState[]{AIR}, null);
+        Map<BlockState, Short> indices = new IdentityHashMap<>();
+        List<BlockState> palette = new ArrayList<>();
+        short[] data = new short[4096];
+        for (int y = 0; y < 16; y++) for (int z = 0; z < 16; z++) for (int x = 0; x < 16; x++)
+        {
+            BlockState state = section.getBlockState(x, y, z);
+            Short id = indices.get(state);
+            if (id == null)
+            {
+                id = (short) palette.size();
+                indices.put(state, id);
+                palette.add(state);
+            }
+            data[(y << 8) | (z << 4) | x] = id;
+        }
+        return new Section(sx, sy, sz, palette.toArray(new BlockState[0]), palette.size() == 1 ? null : data);
+    }
+
+    public boolean contains(int x, int y, int z)
+    {
+        return x >= minx && x <= maxx && y >= miny && y <= maxy && z >= minz && z <= maxz;
+    }
+
+    /**
+     * @return state at the position, or null if it is outside of the box, or in a chunk that wasn't loaded
+     */
+    public BlockState get(int x, int y, int z)
+    {
+        if (!contains(x, y, z)) return null;
+        int sx = (x >> 4) - (minx >> 4);
+        int sy = (y >> 4) - (miny >> 4);
+        int sz = (z >> 4) - (minz >> 4);
+        Section section = sections[(sx * sectionsZ + sz) * sectionsY + sy];
+        return section == null ? null : section.get(x, y, z);
+    }
+
+    /**
+     * @return all states in the snapshot, possibly with some outside of its box, in sections it shares with the area outside
+     */
+    public Set<BlockState> states()
+    {
+        Set<BlockState> states = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Section section : sections) if (section != null) for (BlockState state : section.palette) states.add(state);
+        return states;
+    }
+
+    /**
+     * Calls the visitor for each copied section, one after another, on the calling thread
+     */
+    public void forEachSection(Consumer<Section> visitor)
+    {
+        for (Section section : sections) if (section != null) visitor.accept(section);
+    }
+
+    /**
+     * Calls the visitor for each copied section, in parallel, joining results in order of sections.
+     * The visitor runs in worker threads, so it should only read the sections, and never run script code.
+     */
+    public <T> List<T> visitSections(Function<Section, List<T>> visitor)
+    {
+        List<CompletableFuture<List<T>>> parts = new ArrayList<>(sections.length);
+        for (Section section : sections) if (section != null) parts.add(CompletableFuture.supplyAsync(() -> visitor.apply(section), POOL));
+        List<T> results = new ArrayList<>();
+        try
+        {
+            for (CompletableFuture<List<T>> part : parts) results.addAll(part.join());
+        }
+        catch (CompletionException exc)
+        {
+            if (exc.getCause() instanceof RuntimeException) throw (RuntimeException) exc.getCause();
+            throw exc;
+        }
+        return results;
+    }
+}
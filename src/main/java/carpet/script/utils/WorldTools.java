@@ -1,12 +1,16 @@
 package carpet.script.utils;
 
 import carpet.fakes.MinecraftServerInterface;
+import carpet.fakes.ServerChunkManagerInterface;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.network.packet.s2c.play.ChunkDataS2CPacket;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.WorldGenerationProgressListener;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ChunkTicketManager;
+import net.minecraft.server.world.ChunkTicketType;
+import net.minecraft.server.world.ServerChunkManager;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.Util;
@@ -30,49 +34,133 @@ import net.minecraft.world.gen.chunk.ChunkGeneratorSettings;
 import net.minecraft.world.gen.chunk.NoiseChunkGenerator;
 import net.minecraft.world.level.ServerWorldProperties;
 import net.minecraft.world.level.UnmodifiableLevelProperties;
-import net.minecraft.world.storage.RegionFile;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class WorldTools
 {
 
-    public static boolean canHasChunk(ServerWorld world, ChunkPos chpos, Map<String, RegionFile> regionCache, boolean deepcheck)
+    private static final int REGION_HEADERS = 256;
+    // keeps loaded chunks around for a while, so apps get to use them before they unload again
+    private static final ChunkTicketType<ChunkPos> PRELOAD = ChunkTicketType.create("scarpet_preload", Comparator.comparingLong(ChunkPos::toLong), 300);
+
+    private static class RegionHeader
+    {
+        final long modified;
+        final long size;
+        // sector locations of chunks in the region, 0 for missing chunks
+        final int[] locations;
+
+        RegionHeader(long modified, long size, int[] locations)
+        {
+            this.modified = modified;
+            this.size = size;
+            this.locations = locations;
+        }
+    }
+
+    // headers of recently checked region files, shared by all worlds and threads
+    private static final Map<Path, RegionHeader> regionHeaders = new LinkedHashMap<Path, RegionHeader>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, RegionHeader> eldest)
+        {
+            return size() > REGION_HEADERS;
+        }
+    };
+
+    /**
+     * Reads the table of chunk locations at the start of the region file, or reuses it if the file didn't change since
+     */
+    private static RegionHeader regionHeader(Path file, BasicFileAttributes attributes) throws IOException
+    {
+        long modified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        synchronized (regionHeaders)
+        {
+            RegionHeader header = regionHeaders.get(file);
+            if (header != null && header.modified == modified && header.size == size) return header;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+        }
+        // files shorter than the header have no chunks
+        int[] locations = new int[1024];
+        buffer.flip();
+        buffer.asIntBuffer().get(locations, 0, buffer.remaining() / 4);
+        RegionHeader header = new RegionHeader(modified, size, locations);
+        synchronized (regionHeaders)
+        {
+            regionHeaders.put(file, header);
+        }
+        return header;
+    }
+
+    public static boolean canHasChunk(ServerWorld world, ChunkPos chpos, boolean deepcheck)
     {
         if (world.getChunk(chpos.x, chpos.z, ChunkStatus.STRUCTURE_STARTS, false) != null)
             return true;
         String currentRegionName = "r." + chpos.getRegionX() + "." + chpos.getRegionZ() + ".mca";
-        if (regionCache != null && regionCache.containsKey(currentRegionName))
-        {
-            RegionFile region = regionCache.get(currentRegionName);
-            if (region == null) return false;
-            return region.hasChunk(chpos);
-        }
         Path regionPath = new File(((MinecraftServerInterface )world.getServer()).getCMSession().getWorldDirectory(world.getRegistryKey()), "region").toPath();
         Path regionFilePath = regionPath.resolve(currentRegionName);
-        File regionFile = regionFilePath.toFile();
-        if (!regionFile.exists())
+        BasicFileAttributes attributes;
+        try
+        {
+            attributes = Files.readAttributes(regionFilePath, BasicFileAttributes.class);
+        }
+        catch (IOException missing)
         {
-            if (regionCache != null) regionCache.put(currentRegionName, null);
             return false;
         }
-        if (!deepcheck) return true; // not using cache in this case.
+        if (!deepcheck) return true;
         try
         {
-            RegionFile region = new RegionFile(regionFile, regionPath.toFile(), true);
-            if (regionCache != null) regionCache.put(currentRegionName, region);
-            return region.hasChunk(chpos);
+            return regionHeader(regionFilePath, attributes).locations[chpos.getRegionRelativeX() + chpos.getRegionRelativeZ() * 32] != 0;
         }
         catch (IOException ignored) { }
         return true;
     }
 
+    /**
+     * Loads, or generates chunks up to the status, without waiting for them
+     * @return future of the number of chunks that got to the status, completing off the main thread
+     */
+    public static CompletableFuture<Integer> loadChunks(ServerWorld world, List<ChunkPos> chunks, ChunkStatus status)
+    {
+        // tickets and chunk futures can only be handled on the main thread
+        return CompletableFuture.supplyAsync(() ->
+        {
+            ServerChunkManager chunkManager = world.getChunkManager();
+            ChunkTicketManager ticketManager = ((ServerChunkManagerInterface) chunkManager).getCMTicketManager();
+            int level = 33 + ChunkStatus.getDistanceFromFull(status);
+            // all tickets go first, so chunk holders for all of them get created at once
+            for (ChunkPos pos : chunks) ticketManager.addTicketWithLevel(PRELOAD, pos, level, pos);
+            List<CompletableFuture<Boolean>> loaded = new ArrayList<>(chunks.size());
+            for (ChunkPos pos : chunks)
+                loaded.add(chunkManager.getChunkFutureSyncOnMainThread(pos.x, pos.z, status, true).thenApply(either -> either.left().isPresent()));
+            return loaded;
+        }, world.getServer()).thenCompose(loaded -> CompletableFuture.allOf(loaded.toArray(new CompletableFuture[0])).thenApply(v ->
+                (int) loaded.stream().filter(CompletableFuture::join).count()
+        ));
+    }
+
     public static boolean createWorld(MinecraftServer server, String worldKey, Long seed)
     {
         Identifier worldId = new Identifier(worldKey);
@@ -16,9 +16,9 @@ import carpet.script.CarpetScriptServer;
 import carpet.script.EntityEventsGroup;
 import carpet.script.argument.Vector3Argument;
 import carpet.script.exception.InternalExpressionException;
+import carpet.script.utils.EntitySelectorCache;
 import carpet.script.utils.InputValidator;
 import com.google.common.collect.Sets;
-import com.mojang.brigadier.StringReader;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import net.minecraft.entity.SpawnGroup;
 import net.minecraft.entity.ai.brain.Brain;
@@ -37,8 +37,6 @@ import net.minecraft.network.packet.s2c.play.EntityPositionS2CPacket;
 import net.minecraft.network.packet.s2c.play.ExperienceBarUpdateS2CPacket;
 import net.minecraft.network.packet.s2c.play.PlayerPositionLookS2CPacket;
 import net.minecraft.network.packet.s2c.play.UpdateSelectedSlotS2CPacket;
-import net.minecraft.command.EntitySelector;
-import net.minecraft.command.EntitySelectorReader;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.EntityPose;
 import net.minecraft.entity.EntityType;
@@ -110,19 +108,11 @@ public class EntityValue extends Value
         return new EntityValue(e);
     }
 
-    private static final Map<String, EntitySelector> selectorCache = new HashMap<>();
     public static Collection<? extends Entity > getEntitiesFromSelector(ServerCommandSource source, String selector)
     {
         try
         {
-            EntitySelector entitySelector = selectorCache.get(selector);
-            if (entitySelector != null)
-            {
-                return entitySelector.getEntities(source.withMaxLevel(4));
-            }
-            entitySelector = new EntitySelectorReader(new StringReader(selector), true).read();
-            selectorCache.put(selector, entitySelector);
-            return entitySelector.getEntities(source.withMaxLevel(4));
+            return EntitySelectorCache.getEntities(source, selector);
         }
         catch (CommandSyntaxException e)
         {
@@ -225,6 +215,7 @@ public class EntityValue extends Value
             }
             return this.get(what, arg);
         }
+        if (v instanceof Feature) return this.get((Feature) v, null);
         String what = v.getString();
         return this.get(what, null);
     }
@@ -400,13 +391,51 @@ public class EntityValue extends Value
         }};
     }
 
+    /**
+     * Name of an entity feature known when the code is parsed, holding what the name refers to,
+     * so querying or modifying it skips looking the feature up by its name
+     */
+    public static class Feature extends StringValue
+    {
+        private final BiFunction<Entity, Value, Value> accessor;
+        private final BiConsumer<Entity, Value> modifier;
+
+        private Feature(String name)
+        {
+            super(name);
+            accessor = featureAccessors.get(name);
+            modifier = featureModifiers.get(name);
+        }
+    }
+
+    /**
+     * @return the feature the name refers to, or the name as it is if it isn't a name of a feature
+     */
+    public static Value resolveFeature(Value name)
+    {
+        if (name.getClass() != StringValue.class) return name;
+        String what = name.getString();
+        if (!featureAccessors.containsKey(what) && !featureModifiers.containsKey(what)) return name;
+        return new Feature(what);
+    }
+
+    public Value get(Feature feature, Value arg)
+    {
+        return get(feature.getString(), feature.accessor, arg);
+    }
+
     public Value get(String what, Value arg)
     {
-        if (!(featureAccessors.containsKey(what)))
+        return get(what, featureAccessors.get(what), arg);
+    }
+
+    private Value get(String what, BiFunction<Entity, Value, Value> accessor, Value arg)
+    {
+        if (accessor == null)
             throw new InternalExpressionException("Unknown entity feature: "+what);
         try
         {
-            return featureAccessors.get(what).apply(getEntity(), arg);
+            return accessor.apply(getEntity(), arg);
         }
         catch (NullPointerException npe)
         {
@@ -925,13 +954,23 @@ public class EntityValue extends Value
         put("category",(e,a)->{return new StringValue(e.getType().getSpawnGroup().toString().toLowerCase(Locale.ROOT));});
     }};
 
+    public void set(Feature feature, Value toWhat)
+    {
+        set(feature.getString(), feature.modifier, toWhat);
+    }
+
     public void set(String what, Value toWhat)
     {
-        if (!(featureModifiers.containsKey(what)))
+        set(what, featureModifiers.get(what), toWhat);
+    }
+
+    private void set(String what, BiConsumer<Entity, Value> modifier, Value toWhat)
+    {
+        if (modifier == null)
             throw new InternalExpressionException("Unknown entity action: " + what);
         try
         {
-            featureModifiers.get(what).accept(getEntity(), toWhat);
+            modifier.accept(getEntity(), toWhat);
         }
         catch (NullPointerException npe)
         {
@@ -3,8 +3,11 @@ package carpet.script.value;
 import carpet.CarpetSettings;
 import carpet.script.Context;
 import carpet.script.Expression;
+import carpet.script.FrameLayout;
 import carpet.script.Fluff;
 import carpet.script.LazyValue;
+import carpet.script.ScriptHost;
+import carpet.script.ScriptProfiler;
 import carpet.script.Tokenizer;
 import carpet.script.bundled.Module;
 import carpet.script.exception.BreakStatement;
@@ -12,13 +15,18 @@ import carpet.script.exception.ContinueStatement;
 import carpet.script.exception.ExpressionException;
 import carpet.script.exception.InternalExpressionException;
 import carpet.script.exception.ReturnStatement;
+import carpet.script.exception.TailCallStatement;
 import net.minecraft.nbt.NbtString;
 import net.minecraft.nbt.NbtElement;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -31,10 +39,63 @@ public class FunctionValue extends Value implements Fluff.ILazyFunction
     private Map<String, LazyValue> outerState;
     private final List<String> args;
     private final String varArgs;
+    private final FrameLayout layout;
+    private final int[] argSlots;
+    private final int varArgsSlot;
+    private final Set<String> calls;
+    // shared with copies of the function
+    private final AtomicReference<Memo> memo;
     private static long variantCounter = 1;
     private long variant;
 
-    private FunctionValue(Expression expression, Tokenizer.Token token, String name, LazyValue body, List<String> args, String varArgs)
+    private static class MemoKey
+    {
+        final Context.Type type;
+        final List<Value> args;
+
+        MemoKey(Context.Type type, List<Value> args)
+        {
+            this.type = type;
+            this.args = args;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof MemoKey && type == ((MemoKey) o).type && args.equals(((MemoKey) o).args);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * type.hashCode() + args.hashCode();
+        }
+    }
+
+    private static class Memo
+    {
+        final Map<MemoKey, Value> results;
+        final int limit;
+        final ScriptHost host;
+        final int version;
+
+        Memo(int limit, ScriptHost host, int version)
+        {
+            this.limit = limit;
+            this.results = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<MemoKey, Value> eldest)
+                {
+                    return size() > limit;
+                }
+            });
+            this.host = host;
+            this.version = version;
+        }
+    }
+
+    private FunctionValue(Expression expression, Tokenizer.Token token, String name, LazyValue body, List<String> args, String varArgs, FrameLayout layout, Set<String> calls, AtomicReference<Memo> memo)
     {
         this.expression = expression;
         this.token = token;
@@ -43,10 +104,24 @@ public class FunctionValue extends Value implements Fluff.ILazyFunction
         this.args = args;
         this.varArgs = varArgs;
         this.outerState = null;
+        this.layout = layout;
+        this.argSlots = slotsOf(layout, args);
+        this.varArgsSlot = (layout == null || varArgs == null) ? -1 : layout.slotOf(varArgs);
+        this.calls = calls;
+        this.memo = memo;
         variant = 0L;
     }
 
     public FunctionValue(Expression expression, Tokenizer.Token token, String name, LazyValue body, List<String> args, String varArgs, Map<String, LazyValue> outerState)
+    {
+        this(expression, token, name, body, args, varArgs, outerState, null, null);
+    }
+
+    /**
+     * @param calls names of functions the function calls, if its result otherwise depends only on its arguments,
+     *              or null if it may depend on anything else
+     */
+    public FunctionValue(Expression expression, Tokenizer.Token token, String name, LazyValue body, List<String> args, String varArgs, Map<String, LazyValue> outerState, FrameLayout layout, Set<String> calls)
     {
         this.expression = expression;
         this.token = token;
@@ -55,9 +130,22 @@ public class FunctionValue extends Value implements Fluff.ILazyFunction
         this.args = args;
         this.varArgs = varArgs;
         this.outerState = outerState;
+        this.layout = layout;
+        this.argSlots = slotsOf(layout, args);
+        this.varArgsSlot = (layout == null || varArgs == null) ? -1 : layout.slotOf(varArgs);
+        this.calls = calls;
+        this.memo = new AtomicReference<>();
         variant = variantCounter++;
     }
 
+    private static int[] slotsOf(FrameLayout layout, List<String> args)
+    {
+        if (layout == null) return null;
+        int[] slots = new int[args.size()];
+        for (int i = 0; i < slots.length; i++) slots[i] = layout.slotOf(args.get(i));
+        return slots;
+    }
+
     @Override
     public String getString()
     {
@@ -87,7 +175,7 @@ public class FunctionValue extends Value implements Fluff.ILazyFunction
     @Override
     protected Value clone()
     {
-        FunctionValue ret = new FunctionValue(expression, token, name, body, args, varArgs);
+        FunctionValue ret = new FunctionValue(expression, token, name, body, args, varArgs, layout, calls, memo);
         ret.outerState = this.outerState;
         ret.variant = this.variant;
         return ret;
@@ -209,7 +297,119 @@ public class FunctionValue extends Value implements Fluff.ILazyFunction
         return execute(c, type, e, t, resolvedParams);
     }
 
+    private boolean dependsOnlyOnArguments(ScriptHost host, Set<FunctionValue> checked)
+    {
+        if (calls == null) return false;
+        if (!checked.add(this)) return true;
+        for (String callee : calls)
+            if (!host.getAssertFunction(expression.module, callee).dependsOnlyOnArguments(host, checked)) return false;
+        return true;
+    }
+
+    /**
+     * Keeps results of up to a given number of the most recently used argument combinations.
+     * Remembered results are dropped when functions of the app change, since the function may call them.
+     * @param size maximum number of remembered results, 0 to stop memoizing
+     */
+    public void memoize(Context c, int size)
+    {
+        if (size <= 0)
+        {
+            memo.set(null);
+            return;
+        }
+        if (!dependsOnlyOnArguments(c.host, new HashSet<>()))
+            throw new InternalExpressionException("Function "+fullName()+" can't be memoized since its result may depend on more than its arguments");
+        memo.set(new Memo(size, c.host, c.host.getFunctionVersion()));
+    }
+
     public LazyValue execute(Context c, Context.Type type, Expression e, Tokenizer.Token t, List<Value> params)
+    {
+        if (ScriptProfiler.isProfiling())
+            return ScriptProfiler.profile(c.host, this, t, () -> recall(c, type, e, t, params));
+        return recall(c, type, e, t, params);
+    }
+
+    private LazyValue recall(Context c, Context.Type type, Expression e, Tokenizer.Token t, List<Value> params)
+    {
+        Memo current = memo.get();
+        if (current == null) return evaluate(c, type, e, t, params);
+        if (current.host != c.host || current.version != c.host.getFunctionVersion())
+        {
+            Memo renewed = dependsOnlyOnArguments(c.host, new HashSet<>())
+                    ? new Memo(current.limit, c.host, c.host.getFunctionVersion()) : null;
+            memo.compareAndSet(current, renewed);
+            if (renewed == null) return evaluate(c, type, e, t, params);
+            current = renewed;
+        }
+        // results for entities, blocks and the like may change, even if the code only reads its arguments
+        for (Value param : params)
+            if (!isPlainValue(param)) return evaluate(c, type, e, t, params);
+        Map<MemoKey, Value> results = current.results;
+        Value known = results.get(new MemoKey(type, params));
+        if (known != null)
+        {
+            Value copy = known.fromConstant();
+            return (cc, tt) -> copy;
+        }
+        List<Value> key = new ArrayList<>(params.size());
+        for (Value param : params) key.add(param.fromConstant());
+        Value result = evaluate(c, type, e, t, params).evalValue(c, type);
+        results.put(new MemoKey(type, key), result.fromConstant());
+        return (cc, tt) -> result;
+    }
+
+    /**
+     * @return whether the value is a number, string, or a list or map of those
+     */
+    private static boolean isPlainValue(Value value)
+    {
+        if (value instanceof NumericValue || value instanceof StringValue) return true;
+        if (value instanceof ListValue)
+            return ((ListValue) value).getItems().stream().allMatch(FunctionValue::isPlainValue);
+        if (value instanceof MapValue)
+        {
+            for (Map.Entry<Value, Value> entry : ((MapValue) value).getMap().entrySet())
+                if (!isPlainValue(entry.getKey()) || !isPlainValue(entry.getValue())) return false;
+            return true;
+        }
+        return false;
+    }
+
+    private LazyValue evaluate(Context c, Context.Type type, Expression e, Tokenizer.Token t, List<Value> params)
+    {
+        Context newFrame = layout == null ? c.recreate() : c.recreate(layout);
+        bindArguments(newFrame, c, e, t, params);
+        Value retVal;
+        while (true)
+        {
+            c.host.checkBudget(c);
+            try
+            {
+                retVal = body.evalValue(newFrame, type); // todo not sure if we need to propagete type / consider boolean context in defined functions - answer seems ye
+                break;
+            }
+            catch (BreakStatement | ContinueStatement exc)
+            {
+                throw new ExpressionException(c, e, t, "'continue' and 'break' can only be called inside loop function bodies");
+            }
+            catch (ReturnStatement returnStatement)
+            {
+                retVal = returnStatement.retval;
+                break;
+            }
+            catch (TailCallStatement tailCall)
+            {
+                // the function called itself as its last statement, so its locals are no longer needed
+                newFrame.resetLocals();
+                bindArguments(newFrame, c, e, t, tailCall.args);
+            }
+        }
+        Value otherRetVal = retVal;
+        return (cc, tt) -> otherRetVal;
+    }
+
+    private void bindArguments(Context newFrame, Context c, Expression e, Tokenizer.Token t, List<Value> params)
     {
         assertArgsOk(params, (fixedArgs) ->{
             if (fixedArgs)  // wrong number of args for fixed args
@@ -229,14 +429,15 @@ public class FunctionValue extends Value implements Fluff.ILazyFunction
                 );
             }
         });
-        Context newFrame = c.recreate();
-
         if (outerState != null) outerState.forEach(newFrame::setVariable);
         for (int i=0; i<args.size(); i++)
         {
             String arg = args.get(i);
             Value val = params.get(i).reboundedTo(arg); // todo check if we need to copy that
-            newFrame.setVariable(arg, (cc, tt) -> val);
+            if (argSlots != null && argSlots[i] >= 0)
+                newFrame.setLocal(argSlots[i], val);
+            else
+                newFrame.setVariable(arg, (cc, tt) -> val);
         }
         if (varArgs != null)
         {
@@ -246,24 +447,12 @@ public class FunctionValue extends Value implements Fluff.ILazyFunction
                 extraParams.add(params.get(i).reboundedTo(null)); // copy by value I guess
             }
             Value rest = ListValue.wrap(extraParams).bindTo(varArgs); // didn't we just copied that?
-            newFrame.setVariable(varArgs, (cc, tt) -> rest);
+            if (varArgsSlot >= 0)
+                newFrame.setLocal(varArgsSlot, rest);
+            else
+                newFrame.setVariable(varArgs, (cc, tt) -> rest);
 
         }
-        Value retVal;
-        try
-        {
-            retVal = body.evalValue(newFrame, type); // todo not sure if we need to propagete type / consider boolean context in defined functions - answer seems ye
-        }
-        catch (BreakStatement | ContinueStatement exc)
-        {
-            throw new ExpressionException(c, e, t, "'continue' and 'break' can only be called inside loop function bodies");
-        }
-        catch (ReturnStatement returnStatement)
-        {
-            retVal = returnStatement.retval;
-        }
-        Value otherRetVal = retVal;
-        return (cc, tt) -> otherRetVal;
     }
 
     public Expression getExpression()
@@ -0,0 +1,463 @@
+package carpet.script.value;
+
+import carpet.script.Context;
+import carpet.script.ScriptHost;
+import carpet.script.exception.ExitStatement;
+import carpet.script.exception.ExpressionException;
+import carpet.script.exception.InternalExpressionException;
+
+import java.lang.ref.Cleaner;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Iterator over values a function passes to 'yield'. The function runs on a thread of its own, but only while the code
+ * asking for the next value waits for it, so it behaves as if the function paused at each 'yield' and resumed where
+ * it left off, keeping its locals, no matter how much later it is asked for the next value.
+ * While it waits, the thread asking for the value runs nothing but the work the function hands over to it, like
+ * loading chunks or docked changes, and the main thread also runs work apps hand over to it, so a generator advanced
+ * by the main thread has the world to itself, apart from apps changing it.
+ */
+public class GeneratorValue extends LazyListValue
+{
+    private static final Cleaner CLEANER = Cleaner.create(runnable ->
+    {
+        Thread thread = new Thread(runnable, "Scarpet generator cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Routine routine;
+    // generators the main thread waits for, only changed by the main thread
+    private static volatile int mainThreadWaits = 0;
+
+    public GeneratorValue(FunctionValue function, Context context, List<Value> args)
+    {
+        this.routine = new Routine(function, context, args);
+        // generators nobody can ask for values anymore free the thread their function waits in
+        CLEANER.register(this, routine::close);
+    }
+
+    /**
+     * Passes a value to the code iterating over the current generator, called by the generator function,
+     * and waits until the next value is requested
+     */
+    public static void yieldValue(Value value)
+    {
+        Routine routine = Routine.CURRENT.get();
+        if (routine == null) throw new InternalExpressionException("'yield' can only be used in functions run as generators");
+        routine.pause(new Routine.Step(value, false, null));
+    }
+
+    /**
+     * Pauses the current generator function until the app gets a new budget in a later tick, if the main thread
+     * waits for it directly
+     * @return false if the current thread can't pause
+     */
+    public static boolean pauseOutOfBudget(ScriptHost host)
+    {
+        Routine routine = Routine.CURRENT.get();
+        if (routine == null || routine.consumer != ScriptHost.mainThread) return false;
+        do
+        {
+            routine.pause(Routine.OUT_OF_BUDGET);
+        }
+        while (host.isOutOfBudget());
+        return true;
+    }
+
+    /**
+     * @return executor running actions on the main thread, when the current thread runs a generator function
+     * the main thread waits for, directly or through other generators, null otherwise
+     */
+    public static Executor mainThreadExecutor()
+    {
+        for (Routine routine = Routine.CURRENT.get(); routine != null; routine = routine.consumerRoutine)
+            if (routine.consumer == ScriptHost.mainThread) return routine::runOnConsumer;
+        return null;
+    }
+
+    /**
+     * @return whether the main thread waits for a generator, so it runs only work handed over to it
+     */
+    public static boolean isMainThreadWaiting()
+    {
+        return mainThreadWaits > 0;
+    }
+
+    /**
+     * Run of the generator function. It is kept apart from the generator, since the thread of a paused function
+     * refers to it, and generators need to become unreachable to be cleaned up.
+     */
+    public static class Routine
+    {
+        private static final ThreadLocal<Routine> CURRENT = new ThreadLocal<>();
+        // unwinds the generator function when the generator is closed before it finishes
+        private static final ExitStatement CLOSED = new ExitStatement(null);
+
+        private static class Step
+        {
+            final Value value;
+            final boolean done;
+            final RuntimeException error;
+
+            Step(Value value, boolean done, RuntimeException error)
+            {
+                this.value = value;
+                this.done = done;
+                this.error = error;
+            }
+        }
+        // handed over instead of a value when the function pauses for the budget of the app
+        private static final Step OUT_OF_BUDGET = new Step(null, false, null);
+
+        private final FunctionValue function;
+        private final Context context;
+        private final List<Value> args;
+
+        // holds a single answer to the function waiting at 'yield', true to resume, false to stop
+        private final BlockingQueue<Boolean> resumes = new ArrayBlockingQueue<>(1);
+        // work the function hands over to the thread waiting for it
+        private final Queue<Runnable> consumerTasks = new ConcurrentLinkedQueue<>();
+        private volatile Step step = null;
+        private volatile Thread consumer = null;
+        private volatile Routine consumerRoutine = null;
+        private volatile boolean closed = false;
+        // guards the state below, and is released while the function runs
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition idle = lock.newCondition();
+        private boolean launched = false;
+        private boolean finished = false;
+        private boolean running = false;
+        private boolean outOfBudget = false;
+        private Value pending = null;
+
+        private Routine(FunctionValue function, Context context, List<Value> args)
+        {
+            this.function = function;
+            // without the variables of the code creating the generator, which may refer to the generator itself
+            this.context = context.duplicate();
+            this.args = args;
+        }
+
+        private void pause(Step paused)
+        {
+            step = paused;
+            LockSupport.unpark(consumer);
+            if (closed) throw CLOSED;
+            boolean resume;
+            try
+            {
+                resume = resumes.take();
+            }
+            catch (InterruptedException ignored)
+            {
+                resume = false;
+            }
+            if (!resume || closed) throw CLOSED;
+        }
+
+        private void runOnConsumer(Runnable action)
+        {
+            consumerTasks.add(action);
+            LockSupport.unpark(consumer);
+        }
+
+        private void run()
+        {
+            CURRENT.set(this);
+            Step last = new Step(null, true, null);
+            try
+            {
+                function.callInContext(context, Context.NONE, args).evalValue(context);
+            }
+            catch (ExitStatement exit)
+            {
+                // closed, or the app stopped
+            }
+            catch (RuntimeException exc)
+            {
+                last = new Step(null, true, exc);
+            }
+            finally
+            {
+                CURRENT.remove();
+                step = last;
+                context.host.removeGenerator(this);
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        /**
+         * Makes sure the next value is pending, or the generator is finished. Called with the lock held, which is
+         * released while waiting for the function, so other threads can close it, or find it busy.
+         */
+        private void advance()
+        {
+            while (running)
+            {
+                // the function, or the code waiting for it, asking for its next value would never get it
+                boolean waitedFor = consumer == Thread.currentThread();
+                for (Routine routine = CURRENT.get(); routine != null && !waitedFor; routine = routine.consumerRoutine)
+                    waitedFor = routine == this;
+                if (waitedFor) throw new InternalExpressionException("Generator of "+function.fullName()+" is already running");
+                idle.awaitUninterruptibly();
+            }
+            if (closed)
+            {
+                finished = true;
+                pending = null;
+            }
+            if (finished || pending != null) return;
+            Step current;
+            running = true;
+            outOfBudget = false;
+            try
+            {
+                consumer = Thread.currentThread();
+                consumerRoutine = CURRENT.get();
+                step = null;
+                if (!launched)
+                {
+                    launched = true;
+                    if (!start())
+                    {
+                        finished = true;
+                        return;
+                    }
+                }
+                else if (!resumes.offer(true))
+                {
+                    // closed in the meantime, the function is already told to stop
+                    finished = true;
+                    return;
+                }
+                lock.unlock();
+                try
+                {
+                    waitForStep();
+                }
+                finally
+                {
+                    lock.lock();
+                }
+                current = step;
+            }
+            finally
+            {
+                running = false;
+                idle.signalAll();
+            }
+            if (current == OUT_OF_BUDGET)
+            {
+                // stays paused, and continues when asked for a value again
+                outOfBudget = true;
+                throw new InternalExpressionException("App ran out of its tick budget of "+context.host.tickBudget+" steps in generator of "+function.fullName());
+            }
+            if (current.done)
+            {
+                finished = true;
+                if (current.error != null) throw current.error;
+                return;
+            }
+            pending = current.value == null ? Value.NULL : current.value;
+        }
+
+        /**
+         * @return false if the app is shutting down
+         */
+        private boolean start()
+        {
+            if (!context.host.addGenerator(this)) return false;
+            // paused functions keep their thread, so generators don't take threads tasks of the app need
+            Thread thread = new Thread(this::run, "Scarpet generator of "+function.fullName());
+            thread.setDaemon(true);
+            thread.start();
+            return true;
+        }
+
+        private void waitForStep()
+        {
+            boolean mainThread = consumer == ScriptHost.mainThread;
+            if (mainThread) mainThreadWaits++;
+            try
+            {
+                while (step == null)
+                {
+                    Runnable task = consumerTasks.poll();
+                    if (task != null)
+                        task.run();
+                    // tasks of apps may need the main thread to finish what the function waits for
+                    else if (!mainThread || !ScriptHost.runMainThreadWork())
+                        LockSupport.park(this);
+                }
+            }
+            finally
+            {
+                if (mainThread) mainThreadWaits--;
+            }
+        }
+
+        /**
+         * Stops the generator function at its current 'yield', if it hasn't finished yet
+         */
+        public void close()
+        {
+            if (closed) return;
+            closed = true;
+            // the function either takes this, or sees it is closed at its next 'yield'
+            resumes.offer(false);
+        }
+
+        private boolean hasNext()
+        {
+            lock.lock();
+            try
+            {
+                advance();
+                return pending != null;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private Value next()
+        {
+            lock.lock();
+            try
+            {
+                advance();
+                Value value = pending == null ? Value.NULL : pending;
+                pending = null;
+                return value;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private boolean isFinished()
+        {
+            lock.lock();
+            try
+            {
+                return closed || (finished && pending == null);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private boolean isOutOfBudget()
+        {
+            lock.lock();
+            try
+            {
+                return outOfBudget;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stops the generator function at its current 'yield', if it hasn't finished yet
+     */
+    public void close()
+    {
+        routine.close();
+    }
+
+    /**
+     * @return error of the generator, pointing at its function
+     */
+    public ExpressionException promote(InternalExpressionException exc)
+    {
+        return exc.promote(routine.context, routine.function.getExpression(), routine.function.getToken());
+    }
+
+    public ScriptHost getHost()
+    {
+        return routine.context.host;
+    }
+
+    public boolean isFinished()
+    {
+        return routine.isFinished();
+    }
+
+    /**
+     * @return whether the generator function paused, since the app used up its budget for the tick
+     */
+    public boolean isOutOfBudget()
+    {
+        return routine.isOutOfBudget();
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return routine.hasNext();
+    }
+
+    @Override
+    public Value next()
+    {
+        return routine.next();
+    }
+
+    @Override
+    public void reset()
+    {
+        // generators run their function once, like iterators over other streams of values
+    }
+
+    @Override
+    public void fatality()
+    {
+        // unlike other iterators, loops ending early don't restart generators, so they can be continued later
+    }
+
+    @Override
+    public Object clone()
+    {
+        return this;
+    }
+
+    @Override
+    public String getString()
+    {
+        return "generator of "+routine.function.fullName();
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        return o == this;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public String getTypeString()
+    {
+        return "generator";
+    }
+}
@@ -20,10 +20,21 @@ import static java.lang.Math.signum;
 public class NumericValue extends Value
 {
     private final double value;
-    private Long longValue;
+    // exact value for integers, only valid if isLong is set
+    private final long longValue;
+    private final boolean isLong;
     private final static double epsilon = abs(32*((7*0.1)*10-7));
     private final static MathContext displayRounding = new MathContext(12, RoundingMode.HALF_EVEN);
 
+    // shared instances of small integers, covering typical loop counters and relative coordinates
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1024;
+    private static final NumericValue[] smallIntegers = new NumericValue[CACHE_HIGH - CACHE_LOW + 1];
+    static
+    {
+        for (int i = 0; i < smallIntegers.length; i++) smallIntegers[i] = new NumericValue((long) (i + CACHE_LOW));
+    }
+
     public static NumericValue asNumber(Value v1, String id)
     {
         if (!(v1 instanceof NumericValue))
@@ -38,10 +49,32 @@ public class NumericValue extends Value
         return ((NumericValue) v1);
     }
 
+    /**
+     * Integer value, shared for small numbers. Use the constructor for values that get bound to variables directly.
+     */
+    public static NumericValue of(long value)
+    {
+        if (value >= CACHE_LOW && value <= CACHE_HIGH) return smallIntegers[(int) value - CACHE_LOW];
+        return new NumericValue(value);
+    }
+
+    private boolean isShared()
+    {
+        return isLong && longValue >= CACHE_LOW && longValue <= CACHE_HIGH && smallIntegers[(int) longValue - CACHE_LOW] == this;
+    }
+
+    @Override
+    public Value bindTo(String var)
+    {
+        // shared instances can't hold variable names
+        if (isShared()) return reboundedTo(var);
+        return super.bindTo(var);
+    }
+
     public static <T extends Number> Value of(T value)
     {
         if (value == null) return Value.NULL;
-        if (value.doubleValue() == value.longValue()) return new NumericValue(value.longValue());
+        if (value.doubleValue() == value.longValue()) return of(value.longValue());
         if (value instanceof Float) return new NumericValue(0.000_001D * Math.round(1_000_000.0D*value.doubleValue()));
         return new NumericValue(value.doubleValue());
     }
@@ -50,9 +83,9 @@ public class NumericValue extends Value
     @Override
     public String getString()
     {
-        if (longValue != null)
+        if (isLong)
         {
-            return Long.toString(getLong());
+            return Long.toString(longValue);
         }
         try
         {
@@ -72,7 +105,7 @@ public class NumericValue extends Value
     public String getPrettyString()
     {
 
-        if (longValue!= null ||  getDouble() == (double)getLong())
+        if (isLong ||  getDouble() == (double)getLong())
         {
             return Long.toString(getLong());
         }
@@ -103,7 +136,7 @@ public class NumericValue extends Value
 
     public long getLong()
     {
-        if (longValue != null) return longValue;
+        if (isLong) return longValue;
         return floor((value+epsilon));
     }
 
@@ -112,9 +145,9 @@ public class NumericValue extends Value
     {  // TODO test if definintn add(NumericVlaue) woud solve the casting
         if (v instanceof NumericValue nv)
         {
-            if (longValue != null && nv.longValue != null)
+            if (isLong && nv.isLong)
             {
-                return new NumericValue(longValue+nv.longValue);
+                return of(longValue+nv.longValue);
             }
             return new NumericValue(value + nv.value);
         }
@@ -125,9 +158,9 @@ public class NumericValue extends Value
     public Value subtract(Value v) {  // TODO test if definintn add(NumericVlaue) woud solve the casting
         if (v instanceof NumericValue nv)
         {
-            if (longValue != null && nv.longValue != null)
+            if (isLong && nv.isLong)
             {
-                return new NumericValue(longValue-nv.longValue);
+                return of(longValue-nv.longValue);
             }
             return new NumericValue(value - nv.value);
         }
@@ -139,9 +172,9 @@ public class NumericValue extends Value
     {
         if (v instanceof NumericValue nv)
         {
-            if (longValue != null && nv.longValue != null)
+            if (isLong && nv.isLong)
             {
-                return new NumericValue(longValue*nv.longValue);
+                return of(longValue*nv.longValue);
             }
             return new NumericValue(value * nv.value);
         }
@@ -166,7 +199,7 @@ public class NumericValue extends Value
     @Override
     public Value clone()
     {
-        return new NumericValue(value, longValue);
+        return new NumericValue(value, longValue, isLong);
     }
 
     @Override
@@ -178,8 +211,8 @@ public class NumericValue extends Value
         }
         if (o instanceof NumericValue no)
         {
-            if (longValue != null && no.longValue != null)
-                return longValue.compareTo(no.longValue);
+            if (isLong && no.isLong)
+                return Long.compare(longValue, no.longValue);
             return Double.compare(value, no.value);
         }
         return getString().compareTo(o.getString());
@@ -193,8 +226,8 @@ public class NumericValue extends Value
         }
         if (o instanceof NumericValue no)
         {
-            if (longValue != null && no.longValue != null)
-                return longValue.equals(no.longValue);
+            if (isLong && no.isLong)
+                return longValue == no.longValue;
             return !this.subtract(no).getBoolean();
         }
         return super.equals(o);
@@ -202,31 +235,42 @@ public class NumericValue extends Value
 
     public NumericValue(double value)
     {
-        this.value = value;
+        this(value, 0L, false);
     }
-    private NumericValue(double value, Long longValue)
+    private NumericValue(double value, long longValue, boolean isLong)
     {
         this.value = value;
         this.longValue = longValue;
+        this.isLong = isLong;
     }
 
     public NumericValue(String value)
     {
-        BigDecimal decimal = new BigDecimal(value);
-        if (decimal.stripTrailingZeros().scale() <= 0)
+        this(new BigDecimal(value));
+    }
+    private NumericValue(BigDecimal decimal)
+    {
+        this(decimal, exactLong(decimal));
+    }
+    private NumericValue(BigDecimal decimal, Long exact)
+    {
+        this(decimal.doubleValue(), exact == null ? 0L : exact, exact != null);
+    }
+    private static Long exactLong(BigDecimal decimal)
+    {
+        if (decimal.stripTrailingZeros().scale() > 0) return null;
+        try
         {
-            try
-            {
-                longValue = decimal.longValueExact();
-            }
-            catch (ArithmeticException ignored) {}
+            return decimal.longValueExact();
+        }
+        catch (ArithmeticException ignored)
+        {
+            return null;
         }
-        this.value = decimal.doubleValue();
     }
     public NumericValue(long value)
     {
-        this.longValue = value;
-        this.value = (double)value;
+        this((double)value, value, true);
     }
 
     @Override
@@ -256,7 +300,7 @@ public class NumericValue extends Value
     @Override
     public int hashCode()
     {
-        if (longValue!= null || Math.abs(Math.floor(value + 0.5D)-value) < epsilon) // is sufficiently close to the integer value
+        if (isLong || Math.abs(Math.floor(value + 0.5D)-value) < epsilon) // is sufficiently close to the integer value
             return Long.hashCode(getLong());
         return Double.hashCode(value);
     }
@@ -270,10 +314,10 @@ public class NumericValue extends Value
     @Override
     public NbtElement toTag(boolean force)
     {
-        if (longValue != null)
+        if (isLong)
         {
             if (abs(longValue) < Integer.MAX_VALUE-2)
-                return NbtInt.of((int)(long)longValue);
+                return NbtInt.of((int)longValue);
             return NbtLong.of(longValue);
         }
         long lv = getLong();
@@ -292,7 +336,7 @@ public class NumericValue extends Value
     @Override
     public JsonElement toJson()
     {
-        if (longValue != null)
+        if (isLong)
             return new JsonPrimitive(longValue);
         long lv = getLong();
         if (value == (double)lv)
@@ -306,19 +350,27 @@ public class NumericValue extends Value
     }
 
     public NumericValue opposite() {
-        if (longValue != null) return new NumericValue(-longValue);
+        if (isLong) return of(-longValue);
         return new NumericValue(-value);
     }
 
+    /**
+     * @return whether the number is stored as an exact integer, rather than a floating point value
+     */
+    public boolean isLong()
+    {
+        return isLong;
+    }
+
     public boolean isInteger()
     {
-        return longValue!= null ||  getDouble() == (double)getLong();
+        return isLong ||  getDouble() == (double)getLong();
     }
 
     public Value mod(NumericValue n2)
     {
-        if (this.longValue != null && n2.longValue != null)
-            return new NumericValue(Math.floorMod(longValue, n2.longValue));
+        if (this.isLong && n2.isLong)
+            return of(Math.floorMod(longValue, n2.longValue));
         double x = value;
         double y = n2.value;
         if (y == 0) throw new ArithmeticException("Division by zero");
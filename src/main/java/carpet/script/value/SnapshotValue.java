@@ -0,0 +1,61 @@
+package carpet.script.value;
+
+import carpet.script.exception.InternalExpressionException;
+import carpet.script.utils.WorldSnapshot;
+import net.minecraft.nbt.NbtElement;
+
+import java.util.Locale;
+
+public class SnapshotValue extends Value
+{
+    private final WorldSnapshot snapshot;
+
+    public SnapshotValue(WorldSnapshot snapshot)
+    {
+        this.snapshot = snapshot;
+    }
+
+    public WorldSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    @Override
+    public String getString()
+    {
+        return String.format(Locale.ROOT, "snapshot[(%d,%d,%d),..,(%d,%d,%d)]",
+                snapshot.minx, snapshot.miny, snapshot.minz, snapshot.maxx, snapshot.maxy, snapshot.maxz);
+    }
+
+    @Override
+    public boolean getBoolean()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        // each snapshot is its own copy of the world, so only the same snapshot is equal to it
+        return o instanceof SnapshotValue && ((SnapshotValue) o).snapshot == snapshot;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return System.identityHashCode(snapshot);
+    }
+
+    @Override
+    public NbtElement toTag(boolean force)
+    {
+        if (!force) throw new NBTSerializableValue.IncompatibleTypeException(this);
+        throw new InternalExpressionException("Snapshots cannot be serialized");
+    }
+
+    @Override
+    public String getTypeString()
+    {
+        return "snapshot";
+    }
+}
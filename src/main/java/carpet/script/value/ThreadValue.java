@@ -2,6 +2,7 @@ package carpet.script.value;
 
 import carpet.script.Context;
 import carpet.script.Expression;
+import carpet.script.TaskPool;
 import carpet.script.Tokenizer;
 import carpet.script.exception.ExitStatement;
 import carpet.script.exception.ExpressionException;
@@ -11,7 +12,6 @@ import net.minecraft.nbt.NbtElement;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 
 public class ThreadValue extends Value
 {
@@ -33,7 +33,7 @@ public class ThreadValue extends Value
 
     public static CompletableFuture<Value> getCompletableFutureFromFunction(Value pool, FunctionValue function, Expression expr, Tokenizer.Token token, Context ctx, List<Value> args)
     {
-        ExecutorService executor = ctx.host.getExecutor(pool);
+        TaskPool executor = ctx.host.getExecutor(pool);
         if (executor == null)
         {
             // app is shutting down - no more threads can be spawned.
@@ -41,7 +41,8 @@ public class ThreadValue extends Value
         }
         else
         {
-            return CompletableFuture.supplyAsync(
+            // full pools fail here, drop the task, or run it right away, as the app configures
+            return executor.submit(
                     () ->
                     {
                         try
@@ -59,8 +60,7 @@ public class ThreadValue extends Value
                             return Value.NULL;
                         }
 
-                    },
-                    ctx.host.getExecutor(pool)
+                    }
             );
         }
     }